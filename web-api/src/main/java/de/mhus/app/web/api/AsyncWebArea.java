@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api;
+
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import de.mhus.lib.basics.RC;
+import de.mhus.lib.errors.MException;
+
+/**
+ * Web area processing requests asynchronous. If the container supports async requests the call is
+ * switched to async mode and the container thread is released until the returned stage is
+ * completed. Otherwise the request is processed by waiting for the stage.
+ */
+public interface AsyncWebArea extends WebArea {
+
+    /**
+     * Process the call. The stage must be completed with true if the call was consumed. In async
+     * mode it's not possible to fall back to other areas, a call not consumed will be answered
+     * with 404.
+     *
+     * @param instance To identify the area in stateless environments
+     * @param call
+     * @return The stage of the request
+     * @throws MException
+     */
+    CompletionStage<Boolean> doRequestAsync(UUID instance, CallContext call) throws MException;
+
+    @Override
+    default boolean doRequest(UUID instance, CallContext call) throws MException {
+        try {
+            Boolean done = doRequestAsync(instance, call).toCompletableFuture().get();
+            return done != null && done;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MException(RC.INTERNAL_ERROR, "request interrupted", call, e);
+        } catch (ExecutionException e) {
+            throw new MException(RC.INTERNAL_ERROR, "request failed", call, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by output streams able to send file content or direct buffers without copying it
+ * through the heap.
+ */
+public interface ChannelOutput {
+
+    /**
+     * Send a region of the file as the complete remaining content of the response. The response
+     * is completed afterwards, do not write more content.
+     *
+     * @param channel The file
+     * @param position Start of the region
+     * @param count Length of the region
+     * @return false if not supported, nothing was written in this case
+     * @throws IOException
+     */
+    boolean sendFile(FileChannel channel, long position, long count) throws IOException;
+
+    /**
+     * Send the complete file as the remaining content of the response. Streams wrapping the
+     * output can send another representation, e.g. compressed from a cache, and delegate to the
+     * wrapped stream otherwise.
+     *
+     * @param file The file
+     * @param modified Modification time of the file
+     * @param size Size of the file
+     * @return false if not supported, nothing was written in this case
+     * @throws IOException
+     */
+    default boolean sendFile(File file, long modified, long size) throws IOException {
+        return false;
+    }
+
+    /**
+     * Send the remaining bytes of the buffer as the complete remaining content of the response. The
+     * response is completed afterwards, do not write more content.
+     *
+     * @param content The content
+     * @return false if not supported, nothing was written in this case
+     * @throws IOException
+     */
+    boolean sendBuffer(ByteBuffer content) throws IOException;
+}
@@ -15,6 +15,7 @@
  */
 package de.mhus.app.web.api;
 
+import java.io.File;
 import java.util.Map;
 
 import javax.servlet.Servlet;
@@ -26,6 +27,9 @@ import de.mhus.lib.errors.MException;
 
 public interface CherryApi {
 
+    /** Http session attribute holding the id of the aaa session. */
+    String SESSION_ACCESS_ID = "_access_session_id";
+
     CallContext getCurrentCall();
 
     String getMimeType(String file);
@@ -41,4 +45,29 @@ public interface CherryApi {
     Map<String, VirtualHost> getVirtualHosts();
 
     TypeHeader createTypeHeader(INode header) throws MException;
+
+    /**
+     * Remove the cached subject of the aaa session. Must be called if the authentication of the
+     * session changes.
+     *
+     * @param accessSessionId The aaa session id
+     */
+    void invalidateSubject(String accessSessionId);
+
+    /**
+     * Watch a file or a directory tree for changes. All watches share one watcher thread, bursts
+     * of changes are delivered together after they settled.
+     *
+     * @param path File or directory
+     * @param listener The listener, called in a dispatch thread, never concurrently
+     * @return false if watching is not available or parts of the tree can't be watched
+     */
+    boolean watch(File path, FileChangeListener listener);
+
+    /**
+     * Remove all watches of the listener.
+     *
+     * @param listener The listener
+     */
+    void unwatch(FileChangeListener listener);
 }
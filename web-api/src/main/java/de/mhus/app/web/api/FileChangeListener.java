@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api;
+
+import java.io.File;
+import java.util.Set;
+
+/** Listener for changes of files watched by CherryApi.watch(). */
+public interface FileChangeListener {
+
+    /**
+     * Called after a burst of changes settled. Changes of the same file are coalesced.
+     *
+     * @param files Changed, created or deleted files, the watched path itself if changes got lost
+     */
+    void onFilesChanged(Set<File> files);
+
+    /**
+     * Called if a directory created below the watched path can't be watched. Changes in the
+     * directory are not reported.
+     *
+     * @param path The watched path
+     */
+    default void onWatchFailed(File path) {}
+}
@@ -27,4 +27,32 @@ public interface InternalCallContext extends CallContext {
     void setOutputStream(OutputStream os);
 
     void setRemoteIp(String remoteIp);
+
+    /**
+     * Switch the call to async mode. The container will not finish the response after the current
+     * dispatch. The call must be finished with completeAsync().
+     *
+     * @return false if async mode is not supported
+     */
+    boolean startAsync();
+
+    boolean isAsync();
+
+    /**
+     * Finish a call in async mode. The task is executed with the thread bound state of the call
+     * after the container dispatch returned, the response is completed afterwards. Only the first
+     * call is executed, also if the call was aborted before.
+     *
+     * @param task The last work to do for the call
+     */
+    void completeAsync(Runnable task);
+
+    /**
+     * Set the work to do if the call in async mode is aborted by a timeout or an error of the
+     * container before completeAsync() was called. It is executed instead of the task of a later
+     * completeAsync().
+     *
+     * @param handler The last work to do for an aborted call
+     */
+    void setAsyncAbortHandler(Runnable handler);
 }
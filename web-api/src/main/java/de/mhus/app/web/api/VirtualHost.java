@@ -21,6 +21,7 @@ import java.util.Set;
 
 import org.osgi.framework.Bundle;
 
+import de.mhus.app.web.api.util.AdmissionControl;
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.node.INode;
 import de.mhus.lib.errors.MException;
@@ -72,4 +73,34 @@ public interface VirtualHost {
     TypeDefinition prepareHead(CallContext context, String type, boolean fallback);
 
     TypeDefinition getType(CallContext context, String type);
+
+    /**
+     * Request metrics of the virtual host.
+     *
+     * @return The statistics or null if not supported
+     */
+    default VirtualHostStatistics getStatistics() {
+        return null;
+    }
+
+    /**
+     * Concurrency limit of the virtual host.
+     *
+     * @return The admission control or null if not limited
+     */
+    default AdmissionControl getAdmissionControl() {
+        return null;
+    }
+
+    /**
+     * Create a new, not started instance with the same external settings. It is used to reload the
+     * virtual host without interrupting requests: the successor is started and replaces this
+     * instance, which is stopped after the running requests are finished.
+     *
+     * @return The successor or null if the host must be restarted in place
+     * @throws MException
+     */
+    default VirtualHost createSuccessor() throws MException {
+        return null;
+    }
 }
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.mhus.app.web.api.util.LatencyHistogram;
+
+/**
+ * Request metrics of a virtual host. Counters are kept by http method and status class, latency
+ * histograms by http method. Recording is lock and allocation free (a histogram is created at the
+ * first request of a method), it can stay enabled in production.
+ */
+public class VirtualHostStatistics {
+
+    public static final String[] METHODS = {
+        "get", "head", "post", "put", "delete", "options", "trace", "connect", "other"
+    };
+    /** Index 0 is used for unknown status codes, 1 - 5 for 1xx - 5xx */
+    public static final int STATUS_CLASSES = 6;
+
+    private final LongAdder[] counters = new LongAdder[METHODS.length * STATUS_CLASSES];
+    private final AtomicReferenceArray<LatencyHistogram> histograms =
+            new AtomicReferenceArray<>(METHODS.length);
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LongAdder inflight = new LongAdder();
+    private volatile long since = System.currentTimeMillis();
+
+    public VirtualHostStatistics() {
+        for (int i = 0; i < counters.length; i++) counters[i] = new LongAdder();
+    }
+
+    /** Call at the start of a request. */
+    public void begin() {
+        inflight.increment();
+    }
+
+    /**
+     * Call at the end of a request.
+     *
+     * @param method The http method in lower case
+     * @param status The http status code
+     * @param nanos Duration of the request in nanoseconds
+     */
+    public void end(String method, int status, long nanos) {
+        inflight.decrement();
+        int m = getMethodIndex(method);
+        int s = status >= 100 && status < 600 ? status / 100 : 0;
+        counters[m * STATUS_CLASSES + s].increment();
+        long micros = nanos / 1000;
+        total.record(micros);
+        LatencyHistogram histogram = histograms.get(m);
+        if (histogram == null) {
+            histograms.compareAndSet(m, null, new LatencyHistogram());
+            histogram = histograms.get(m);
+        }
+        histogram.record(micros);
+    }
+
+    public static int getMethodIndex(String method) {
+        if (method == null) return METHODS.length - 1;
+        switch (method) {
+            case "get":
+                return 0;
+            case "head":
+                return 1;
+            case "post":
+                return 2;
+            case "put":
+                return 3;
+            case "delete":
+                return 4;
+            case "options":
+                return 5;
+            case "trace":
+                return 6;
+            case "connect":
+                return 7;
+            default:
+                return METHODS.length - 1;
+        }
+    }
+
+    public long getCount(int methodIndex, int statusClass) {
+        return counters[methodIndex * STATUS_CLASSES + statusClass].sum();
+    }
+
+    /**
+     * Return the histogram of the method.
+     *
+     * @param methodIndex Index of the method in METHODS
+     * @return The histogram or null if the method was not requested
+     */
+    public LatencyHistogram getHistogram(int methodIndex) {
+        return histograms.get(methodIndex);
+    }
+
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    public long getInflight() {
+        return inflight.sum();
+    }
+
+    /**
+     * Start of the measurement.
+     *
+     * @return Time in milliseconds
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * Requests per second since the start of the measurement.
+     *
+     * @return Throughput
+     */
+    public double getThroughput() {
+        long duration = System.currentTimeMillis() - since;
+        if (duration <= 0) return 0;
+        return total.getCount() * 1000d / duration;
+    }
+
+    /** Reset all counters, requests in flight are not touched. */
+    public void reset() {
+        for (LongAdder counter : counters) counter.reset();
+        for (int i = 0; i < histograms.length(); i++) {
+            LatencyHistogram histogram = histograms.get(i);
+            if (histogram != null) histogram.reset();
+        }
+        total.reset();
+        since = System.currentTimeMillis();
+    }
+}
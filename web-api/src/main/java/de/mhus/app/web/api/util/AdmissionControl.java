@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent requests of a virtual host. Requests over the limit wait in a
+ * bounded queue for a free slot, if the queue is full or the wait times out the request is
+ * rejected. Free slots are handed to the waiting requests in order of arrival, new requests
+ * don't pass the queue. The fast path is lock free if nobody waits. The limit is static or adapted
+ * by a ConcurrencyLimit algorithm with the latency of the finished requests.
+ */
+public class AdmissionControl {
+
+    private volatile int limit;
+    private final ConcurrencyLimit algorithm;
+    private final int maxQueue;
+    private final long queueTimeout;
+    private final int retryAfter;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    /**
+     * Create a new admission control.
+     *
+     * @param limit Maximum number of concurrent requests
+     * @param maxQueue Maximum number of waiting requests, 0 rejects immediately
+     * @param queueTimeout Maximum wait time in milliseconds
+     * @param retryAfter Value of the Retry-After header for rejected requests in seconds
+     */
+    public AdmissionControl(int limit, int maxQueue, long queueTimeout, int retryAfter) {
+        this(new FixedLimit(limit), maxQueue, queueTimeout, retryAfter);
+    }
+
+    /**
+     * Create a new admission control.
+     *
+     * @param algorithm Algorithm to calculate the maximum number of concurrent requests
+     * @param maxQueue Maximum number of waiting requests, 0 rejects immediately
+     * @param queueTimeout Maximum wait time in milliseconds
+     * @param retryAfter Value of the Retry-After header for rejected requests in seconds
+     */
+    public AdmissionControl(
+            ConcurrencyLimit algorithm, int maxQueue, long queueTimeout, int retryAfter) {
+        this.algorithm = algorithm;
+        this.limit = Math.max(1, algorithm.getLimit());
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeout = queueTimeout;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Acquire a slot for a request. Wait in the queue if no slot is free. If true is returned
+     * release() must be called at the end of the request.
+     *
+     * @return true if the request is admitted, false if it must be rejected
+     */
+    public boolean acquire() {
+        if (queued.get() == 0 && tryAcquire()) {
+            accepted.increment();
+            return true;
+        }
+        if (maxQueue == 0 || queueTimeout <= 0) {
+            rejected.increment();
+            return false;
+        }
+        if (queued.incrementAndGet() > maxQueue) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        Waiter waiter = null;
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && tryAcquire()) {
+                accepted.increment();
+                return true;
+            }
+            waiter = new Waiter(lock.newCondition());
+            waiters.add(waiter);
+            long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+            while (!waiter.granted) {
+                if (remaining <= 0) {
+                    waiters.remove(waiter);
+                    timeouts.increment();
+                    return false;
+                }
+                remaining = waiter.condition.awaitNanos(remaining);
+            }
+            accepted.increment();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            waiters.remove(waiter);
+            if (waiter.granted) {
+                // the slot was handed over, pass it to the next one
+                inflight.decrementAndGet();
+                dispatch();
+            }
+            rejected.increment();
+            return false;
+        } finally {
+            lock.unlock();
+            queued.decrementAndGet();
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= limit) return false;
+            if (inflight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /** Release the slot of an admitted request. */
+    public void release() {
+        inflight.decrementAndGet();
+        // a request queued after this check finds the free slot itself
+        if (queued.get() == 0) return;
+        lock.lock();
+        try {
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release the slot of an admitted request and update the limit.
+     *
+     * @param rtt Time the request was processed in nanoseconds
+     * @param dropped true if the request failed because of overload
+     */
+    public void release(long rtt, boolean dropped) {
+        algorithm.onSample(rtt, inflight.get(), dropped);
+        int next = algorithm.getLimit();
+        if (next != limit) setLimit(next);
+        release();
+    }
+
+    public ConcurrencyLimit getAlgorithm() {
+        return algorithm;
+    }
+
+    // hand free slots to the oldest waiters, needs the lock
+    private void dispatch() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            Waiter waiter = waiters.poll();
+            waiter.granted = true;
+            waiter.condition.signal();
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Change the concurrency limit. Waiting requests are admitted if the limit grows.
+     *
+     * @param limit The new limit, at least 1
+     */
+    public void setLimit(int limit) {
+        int old = this.limit;
+        this.limit = Math.max(1, limit);
+        if (this.limit > old) {
+            lock.lock();
+            try {
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionControl["
+                + algorithm
+                + ",limit="
+                + limit
+                + ",inflight="
+                + inflight.get()
+                + ",queued="
+                + queued.get()
+                + "/"
+                + maxQueue
+                + "]";
+    }
+
+    private static class Waiter {
+        private final Condition condition;
+        private boolean granted;
+
+        private Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+}
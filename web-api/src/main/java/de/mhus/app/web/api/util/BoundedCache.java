@@ -0,0 +1,346 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A size bounded concurrent cache. Reads are lock free, only inserts and removals lock.
+ *
+ * <p>Eviction follows the CLOCK algorithm (an approximated LRU). New entries are admitted by a
+ * TinyLFU filter: if the cache is full a new key must have been requested more often than the
+ * chosen victim. One time keys like random host names of a scanner can't push out the frequently
+ * used entries this way. Call put() after a miss of get(), the get() is counted by the filter.
+ *
+ * <p>With a weigher the cache is also limited by the sum of the weights, e.g. bytes of the values.
+ * Entries are evicted until the new entry fits, the admission filter applies to each victim.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class BoundedCache<K, V> {
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+    private final Node<K, V>[] ring;
+    private final int[] free;
+    private int freeCnt;
+    private int hand;
+    private final long expireAfterWrite;
+    private final long expireAfterAccess;
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    private long weight;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public BoundedCache(int maxSize) {
+        this(maxSize, 0, 0);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maxSize Maximum number of entries
+     * @param expireAfterWrite Time to live after creation in milliseconds or 0
+     * @param expireAfterAccess Time to live after last access in milliseconds or 0
+     */
+    public BoundedCache(int maxSize, long expireAfterWrite, long expireAfterAccess) {
+        this(maxSize, expireAfterWrite, expireAfterAccess, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Create a cache limited by the weight of the values.
+     *
+     * @param maxSize Maximum number of entries
+     * @param maxWeight Maximum sum of the weights
+     * @param weigher Weight of a value, e.g. the size in bytes
+     */
+    public BoundedCache(int maxSize, long maxWeight, ToLongFunction<? super V> weigher) {
+        this(maxSize, 0, 0, maxWeight, weigher);
+    }
+
+    @SuppressWarnings("unchecked")
+    private BoundedCache(
+            int maxSize,
+            long expireAfterWrite,
+            long expireAfterAccess,
+            long maxWeight,
+            ToLongFunction<? super V> weigher) {
+        if (maxSize < 1) maxSize = 1;
+        this.expireAfterWrite = expireAfterWrite;
+        this.expireAfterAccess = expireAfterAccess;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        sketch = new FrequencySketch(maxSize);
+        ring = (Node<K, V>[]) new Node[maxSize];
+        free = new int[maxSize];
+        resetFree();
+    }
+
+    public V get(K key) {
+        sketch.increment(key);
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        long now = isExpiring() ? System.currentTimeMillis() : 0;
+        if (isExpired(node, now)) {
+            removeNode(node);
+            misses.increment();
+            return null;
+        }
+        node.referenced = true;
+        if (expireAfterAccess > 0) node.accessed = now;
+        hits.increment();
+        return node.value;
+    }
+
+    /**
+     * Return the cached value or load and cache it. The loader is not locked, concurrent misses
+     * of the same key can load the value more then once.
+     *
+     * @param key The key
+     * @param loader Loader for missing values, can return null
+     * @return The value or null
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Store the value in the cache.
+     *
+     * @param key The key
+     * @param value The value, not null
+     * @return false if the entry was not admitted
+     */
+    public boolean put(K key, V value) {
+        long now = System.currentTimeMillis();
+        long w = weigher == null ? 0 : weigher.applyAsLong(value);
+        if (w > maxWeight) {
+            rejections.increment();
+            return false;
+        }
+        lock.lock();
+        try {
+            Node<K, V> current = map.get(key);
+            if (current != null && weight - current.weight + w <= maxWeight) {
+                Node<K, V> node = new Node<>(key, value, w, now, current.slot);
+                ring[current.slot] = node;
+                map.put(key, node);
+                weight += w - current.weight;
+                return true;
+            }
+            if (current != null) {
+                // the new value needs more space, insert it like a new key
+                map.remove(key, current);
+                release(current);
+            }
+            int slot = findSlot(key, now, w);
+            if (slot < 0) {
+                rejections.increment();
+                return false;
+            }
+            Node<K, V> node = new Node<>(key, value, w, now, slot);
+            ring[slot] = node;
+            map.put(key, node);
+            weight += w;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public V remove(K key) {
+        lock.lock();
+        try {
+            Node<K, V> node = map.remove(key);
+            if (node == null) return null;
+            release(node);
+            return node.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the entries with matching keys.
+     *
+     * @param filter Test of the key
+     */
+    public void removeIf(Predicate<? super K> filter) {
+        for (Node<K, V> node : map.values()) if (filter.test(node.key)) removeNode(node);
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            map.clear();
+            Arrays.fill(ring, null);
+            resetFree();
+            weight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remove all expired entries. */
+    public void cleanUp() {
+        if (!isExpiring()) return;
+        long now = System.currentTimeMillis();
+        for (Node<K, V> node : map.values()) if (isExpired(node, now)) removeNode(node);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public int getMaxSize() {
+        return ring.length;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size="
+                + size()
+                + "/"
+                + getMaxSize()
+                + ",hits="
+                + getHitCount()
+                + ",misses="
+                + getMissCount()
+                + ",evictions="
+                + getEvictionCount()
+                + ",rejections="
+                + getRejectionCount();
+    }
+
+    private int findSlot(K candidate, long now, long w) {
+        while (weight + w > maxWeight) if (!evict(candidate, now)) return -1;
+        if (freeCnt == 0 && !evict(candidate, now)) return -1;
+        return free[--freeCnt];
+    }
+
+    /** Evict one entry, false if the candidate is not admitted. */
+    private boolean evict(K candidate, long now) {
+        // clock sweep, after one round all reference bits are cleared
+        for (int i = 0; i <= ring.length * 2; i++) {
+            Node<K, V> node = ring[hand];
+            int slot = hand;
+            hand = (hand + 1) % ring.length;
+            if (node == null) continue;
+            if (!isExpired(node, now)) {
+                if (node.referenced) {
+                    node.referenced = false;
+                    continue;
+                }
+                // TinyLFU admission
+                if (sketch.frequency(candidate) <= sketch.frequency(node.key)) return false;
+            }
+            map.remove(node.key, node);
+            ring[slot] = null;
+            free[freeCnt++] = slot;
+            weight -= node.weight;
+            evictions.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private void removeNode(Node<K, V> node) {
+        lock.lock();
+        try {
+            if (map.remove(node.key, node)) release(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Node<K, V> node) {
+        if (ring[node.slot] != node) return;
+        ring[node.slot] = null;
+        free[freeCnt++] = node.slot;
+        weight -= node.weight;
+    }
+
+    private void resetFree() {
+        freeCnt = free.length;
+        for (int i = 0; i < free.length; i++) free[i] = free.length - 1 - i;
+        hand = 0;
+    }
+
+    private boolean isExpiring() {
+        return expireAfterWrite > 0 || expireAfterAccess > 0;
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        if (expireAfterWrite > 0 && now - node.created > expireAfterWrite) return true;
+        if (expireAfterAccess > 0 && now - node.accessed > expireAfterAccess) return true;
+        return false;
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final long weight;
+        private final long created;
+        private final int slot;
+        private volatile long accessed;
+        private volatile boolean referenced;
+
+        private Node(K key, V value, long weight, long created, int slot) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.created = created;
+            this.accessed = created;
+            this.slot = slot;
+        }
+    }
+}
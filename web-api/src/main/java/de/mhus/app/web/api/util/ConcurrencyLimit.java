@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+/**
+ * Algorithm to calculate the concurrency limit of an AdmissionControl. The limit is updated with
+ * a sample of every finished request. Implementations must be thread safe.
+ */
+public interface ConcurrencyLimit {
+
+    /**
+     * Current limit.
+     *
+     * @return The number of concurrent requests allowed
+     */
+    int getLimit();
+
+    /**
+     * Update the limit with the measured request.
+     *
+     * @param rtt Time the request was processed in nanoseconds
+     * @param inflight Number of requests in process when the request finished, including itself
+     * @param dropped true if the request was dropped or timed out
+     */
+    void onSample(long rtt, int inflight, boolean dropped);
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of small static files in direct buffers, shared by all virtual hosts. The cached bytes are
+ * outside of the heap. The cache is limited by a global byte budget, every virtual host has its
+ * own quota. Entries are validated by modification time and size of the file.
+ *
+ * <p>Eviction follows the CLOCK algorithm with TinyLFU admission like BoundedCache: if the budget
+ * is reached a file must have been requested more often than the victim to be cached.
+ */
+public class ContentCache {
+
+    private static final ContentCache instance = new ContentCache(64 * 1024 * 1024, 256 * 1024);
+
+    private final ConcurrentHashMap<File, Entry> map = new ConcurrentHashMap<>();
+    private final ArrayList<Entry> clock = new ArrayList<>();
+    private final CopyOnWriteArrayList<Quota> quotas = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch = new FrequencySketch(64 * 1024);
+    private volatile long budget;
+    private volatile long maxFileSize;
+    private volatile long used;
+    private int hand;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public static ContentCache instance() {
+        return instance;
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param budget Maximum bytes of all entries
+     * @param maxFileSize Bigger files are not cached
+     */
+    public ContentCache(long budget, long maxFileSize) {
+        this.budget = budget;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Create the quota of a virtual host. Release it if the virtual host is stopped.
+     *
+     * @param name Name for statistics
+     * @param limit Maximum bytes of the entries of the quota
+     * @return The quota
+     */
+    public Quota createQuota(String name, long limit) {
+        Quota quota = new Quota(name, limit);
+        quotas.add(quota);
+        return quota;
+    }
+
+    /**
+     * Remove the quota and all its entries.
+     *
+     * @param quota The quota
+     */
+    public void releaseQuota(Quota quota) {
+        quotas.remove(quota);
+        lock.lock();
+        try {
+            for (Entry entry : map.values()) if (entry.quota == quota) removeEntry(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the content of the file. The file is loaded and cached if it is small enough and
+     * admitted.
+     *
+     * @param file The file
+     * @param quota The quota of the virtual host
+     * @return Read only content or null if the file should be read from disk
+     * @throws IOException
+     */
+    public ByteBuffer get(File file, Quota quota) throws IOException {
+        return get(file, file.lastModified(), file.length(), quota);
+    }
+
+    /**
+     * Return the content of the file like get(File, Quota) with the modification time and size
+     * already known by the caller.
+     *
+     * @param file The file
+     * @param modified Modification time of the file
+     * @param size Size of the file
+     * @param quota The quota of the virtual host
+     * @return Read only content or null if the file should be read from disk
+     * @throws IOException
+     */
+    public ByteBuffer get(File file, long modified, long size, Quota quota) throws IOException {
+        sketch.increment(file);
+        Entry entry = map.get(file);
+        if (entry != null) {
+            if (entry.modified == modified && entry.size == size) {
+                entry.referenced = true;
+                hits.increment();
+                entry.quota.hits.increment();
+                return entry.content.duplicate();
+            }
+            remove(file);
+        }
+        misses.increment();
+        quota.misses.increment();
+        if (size > maxFileSize
+                || size > quota.limit
+                || size > budget
+                || size > Integer.MAX_VALUE
+                || modified == 0) return null;
+
+        // direct memory is allocated only for admitted files
+        if (!reserve(file, size, quota)) return null;
+        ByteBuffer content;
+        try {
+            content = ByteBuffer.allocateDirect((int) size);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (content.hasRemaining()) if (channel.read(content) < 0) break;
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            release(size, quota);
+            throw e;
+        }
+        content.flip();
+        // changed while reading, do not cache
+        if (content.limit() != size || file.lastModified() != modified) {
+            release(size, quota);
+            return null;
+        }
+        entry = new Entry(file, modified, size, content.asReadOnlyBuffer(), quota);
+        insert(entry);
+        return entry.content.duplicate();
+    }
+
+    /**
+     * Remove the file from the cache.
+     *
+     * @param file The file
+     */
+    public void remove(File file) {
+        lock.lock();
+        try {
+            Entry entry = map.get(file);
+            if (entry != null) removeEntry(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the files and all cached files in directories of the list.
+     *
+     * @param files Changed files or directories
+     */
+    public void removeAll(Collection<File> files) {
+        if (map.isEmpty()) return;
+        lock.lock();
+        try {
+            for (File file : files) {
+                Entry entry = map.get(file);
+                if (entry != null) removeEntry(entry);
+                else if (!file.isFile()) {
+                    // directory or deleted, remove the content
+                    String prefix = file.getPath() + File.separator;
+                    for (Entry e : map.values())
+                        if (e.file.getPath().startsWith(prefix)) removeEntry(e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            for (Entry entry : new ArrayList<>(map.values())) removeEntry(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Evict entries until the size fits into quota and budget and reserve the bytes. */
+    private boolean reserve(File file, long size, Quota quota) {
+        lock.lock();
+        try {
+            int frequency = sketch.frequency(file);
+            while (quota.used + size > quota.limit) {
+                if (!evict(frequency, quota)) {
+                    rejections.increment();
+                    return false;
+                }
+            }
+            while (used + size > budget) {
+                if (!evict(frequency, null)) {
+                    rejections.increment();
+                    return false;
+                }
+            }
+            used += size;
+            quota.used += size;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long size, Quota quota) {
+        lock.lock();
+        try {
+            used -= size;
+            quota.used -= size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the bytes of the entry are reserved
+    private void insert(Entry entry) {
+        lock.lock();
+        try {
+            Entry current = map.get(entry.file);
+            if (current != null) removeEntry(current);
+            map.put(entry.file, entry);
+            entry.index = clock.size();
+            clock.add(entry);
+            entry.quota.entries++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // clock sweep over the entries, restricted to the quota if set
+    private boolean evict(int candidateFrequency, Quota quota) {
+        for (int i = 0; i <= clock.size() * 2 && !clock.isEmpty(); i++) {
+            if (hand >= clock.size()) hand = 0;
+            Entry entry = clock.get(hand);
+            if (quota != null && entry.quota != quota) {
+                hand++;
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                hand++;
+                continue;
+            }
+            if (candidateFrequency <= sketch.frequency(entry.file)) return false;
+            removeEntry(entry);
+            evictions.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private void removeEntry(Entry entry) {
+        if (!map.remove(entry.file, entry)) return;
+        // swap with the last element, the position in the clock is not relevant
+        Entry last = clock.remove(clock.size() - 1);
+        if (last != entry) {
+            clock.set(entry.index, last);
+            last.index = entry.index;
+        }
+        used -= entry.size;
+        entry.quota.used -= entry.size;
+        entry.quota.entries--;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    public List<Quota> getQuotas() {
+        return new ArrayList<>(quotas);
+    }
+
+    public static class Quota {
+
+        private final String name;
+        private final long limit;
+        private volatile long used;
+        private volatile int entries;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        private Quota(String name, long limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLimit() {
+            return limit;
+        }
+
+        public long getUsed() {
+            return used;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getHitCount() {
+            return hits.sum();
+        }
+
+        public long getMissCount() {
+            return misses.sum();
+        }
+    }
+
+    private static final class Entry {
+        private final File file;
+        private final long modified;
+        private final long size;
+        private final ByteBuffer content;
+        private final Quota quota;
+        private volatile boolean referenced;
+        private int index;
+
+        private Entry(File file, long modified, long size, ByteBuffer content, Quota quota) {
+            this.file = file;
+            this.modified = modified;
+            this.size = size;
+            this.content = content;
+            this.quota = quota;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+/** Static limit. */
+public class FixedLimit implements ConcurrencyLimit {
+
+    private final int limit;
+
+    public FixedLimit(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void onSample(long rtt, int inflight, boolean dropped) {}
+
+    @Override
+    public String toString() {
+        return "fixed";
+    }
+}
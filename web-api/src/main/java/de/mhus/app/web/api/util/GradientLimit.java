@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limit based on the gradient of the minimal and the short term average latency. If the average
+ * latency rises above the minimal latency the limit is reduced by the gradient, it grows by a
+ * queue allowance of sqrt(limit) in every step. The minimal latency is measured again in every
+ * window of samples with low load, so a lasting change of the latency becomes the new base without
+ * reducing the limit.
+ */
+public class GradientLimit implements ConcurrencyLimit {
+
+    private static final double SHORT_WINDOW = 10;
+    private static final double TOLERANCE = 1.2;
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int limit;
+    private double estimatedLimit;
+    private double shortRtt;
+    private final MinRtt minRtt = new MinRtt();
+
+    /**
+     * Create the algorithm.
+     *
+     * @param initialLimit Start value
+     * @param minLimit Lower bound
+     * @param maxLimit Upper bound
+     */
+    public GradientLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        estimatedLimit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void onSample(long rtt, int inflight, boolean dropped) {
+        if (rtt <= 0) return;
+        // sampling is statistic, skip if another thread is updating
+        if (!lock.tryLock()) return;
+        try {
+            double current = estimatedLimit;
+            if (minRtt.get() == 0) shortRtt = rtt;
+            minRtt.update(rtt, inflight, inflight * 2 < current);
+            shortRtt += (rtt - shortRtt) / SHORT_WINDOW;
+
+            // not enough load to decide
+            if (!dropped && inflight * 2 < current) return;
+
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * minRtt.get() / shortRtt));
+            if (dropped) gradient = 0.5;
+            double next = current * gradient + Math.sqrt(current);
+            next = (1 - SMOOTHING) * current + SMOOTHING * next;
+            estimatedLimit = Math.min(maxLimit, Math.max(minLimit, next));
+            limit = (int) estimatedLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "gradient";
+    }
+}
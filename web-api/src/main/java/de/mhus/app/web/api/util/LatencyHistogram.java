@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with logarithmic buckets like HDR histograms. Every power of two is
+ * divided in eight linear sub buckets, the relative error of a percentile is below 12.5%. Values
+ * are microseconds up to about twelve days.
+ *
+ * <p>Buckets and maximum are striped by thread, so concurrent requests don't contend on the same
+ * counters. A stripe is created on its first use, after that recording does not allocate memory.
+ * Readers sum the stripes.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+    private final AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<>(STRIPES);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        Stripe stripe = stripe();
+        stripe.buckets.incrementAndGet(indexOf(micros));
+        count.increment();
+        sum.add(micros);
+        long current = stripe.max.get();
+        while (micros > current && !stripe.max.compareAndSet(current, micros))
+            current = stripe.max.get();
+    }
+
+    /**
+     * Return the value at the percentile.
+     *
+     * @param percentile Between 0 and 100, e.g. 99.9
+     * @return Latency in microseconds
+     */
+    public long getPercentile(double percentile) {
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe == null) continue;
+            for (int i = 0; i < BUCKETS; i++) {
+                long value = stripe.buckets.get(i);
+                buckets[i] += value;
+                total += value;
+            }
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) return Math.min(valueOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe != null) max = Math.max(max, stripe.max.get());
+        }
+        return max;
+    }
+
+    public double getMean() {
+        long c = count.sum();
+        return c == 0 ? 0 : (double) sum.sum() / c;
+    }
+
+    public void reset() {
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe == null) continue;
+            for (int i = 0; i < BUCKETS; i++) stripe.buckets.set(i, 0);
+            stripe.max.set(0);
+        }
+        count.reset();
+        sum.reset();
+    }
+
+    private Stripe stripe() {
+        // spread the thread ids, pool threads have consecutive ids
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        int index = (int) (id >>> 32) & (STRIPES - 1);
+        Stripe stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new Stripe());
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /** Middle of the bucket */
+    private static long valueOf(int index) {
+        if (index < SUB_COUNT) return index;
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        long lower = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        long width = 1L << (exponent - SUB_BITS);
+        return lower + width / 2;
+    }
+
+    private static class Stripe {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+/**
+ * Minimal latency of the adaptive limits. A lower sample is taken immediately. At the end of every
+ * window the minimum of the comparable samples replaces it, so it follows a slower system. Samples
+ * are comparable if they were taken with low load or not more requests in flight than the current
+ * base, other samples contain queueing and would let the base drift upwards.
+ *
+ * <p>Not thread safe, it is updated under the lock of the limit.
+ */
+class MinRtt {
+
+    private static final int WINDOW = 1000;
+    private static final int MIN_COMPARABLE_SAMPLES = 10;
+
+    private long minRtt;
+    private int minRttInflight;
+    private long windowMinRtt;
+    private int windowMinRttInflight;
+    private int comparableSamples;
+    private int samples;
+
+    /**
+     * Add a sample.
+     *
+     * @param rtt The sample
+     * @param inflight Requests in flight
+     * @param lowLoad true if less than half of the limit is in flight
+     * @return true if the sample is a new minimum
+     */
+    boolean update(long rtt, int inflight, boolean lowLoad) {
+        boolean lower = minRtt == 0 || rtt < minRtt;
+        if (lower) {
+            minRtt = rtt;
+            minRttInflight = inflight;
+        }
+        if (lowLoad || inflight <= minRttInflight) {
+            comparableSamples++;
+            if (windowMinRtt == 0 || rtt < windowMinRtt) {
+                windowMinRtt = rtt;
+                windowMinRttInflight = inflight;
+            }
+        }
+        if (++samples >= WINDOW) {
+            if (comparableSamples >= MIN_COMPARABLE_SAMPLES) {
+                minRtt = windowMinRtt;
+                minRttInflight = windowMinRttInflight;
+            }
+            samples = 0;
+            comparableSamples = 0;
+            windowMinRtt = 0;
+        }
+        return lower;
+    }
+
+    /**
+     * @return The minimal latency or 0 before the first sample
+     */
+    long get() {
+        return minRtt;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limit based on TCP Vegas. The minimum observed latency is taken as latency without load, the
+ * number of queued requests is estimated by limit * (1 - minRtt / rtt). The limit grows while the
+ * estimated queue is small and shrinks if it is large or requests are dropped. The minimum latency
+ * is measured again in every window of samples with low load, so it follows changes of the system
+ * without reducing the limit.
+ */
+public class VegasLimit implements ConcurrencyLimit {
+
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int limit;
+    private double estimatedLimit;
+    private final MinRtt minRtt = new MinRtt();
+
+    /**
+     * Create the algorithm.
+     *
+     * @param initialLimit Start value
+     * @param minLimit Lower bound
+     * @param maxLimit Upper bound
+     */
+    public VegasLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        estimatedLimit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void onSample(long rtt, int inflight, boolean dropped) {
+        if (rtt <= 0) return;
+        // sampling is statistic, skip if another thread is updating
+        if (!lock.tryLock()) return;
+        try {
+            double current = estimatedLimit;
+            if (minRtt.update(rtt, inflight, inflight * 2 < current)) return;
+            double log = Math.max(1, Math.log10(current));
+            double next;
+            if (dropped) {
+                next = current - log;
+            } else if (inflight * 2 < current) {
+                // not enough load to decide
+                return;
+            } else {
+                double queue = Math.ceil(current * (1 - (double) minRtt.get() / rtt));
+                double alpha = 3 * log;
+                double beta = 6 * log;
+                if (queue <= log) next = current + beta;
+                else if (queue < alpha) next = current + log;
+                else if (queue > beta) next = current - log;
+                else return;
+            }
+            estimatedLimit = Math.min(maxLimit, Math.max(minLimit, next));
+            limit = (int) estimatedLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "vegas";
+    }
+}
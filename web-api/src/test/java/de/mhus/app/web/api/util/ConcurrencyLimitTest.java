@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.api.util;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Simulation of the adaptive limits. The simulated server processes 'capacity' requests in
+ * parallel, the latency grows linear with the requests in flight above the capacity.
+ */
+public class ConcurrencyLimitTest {
+
+    private static final long BASE_RTT = 10_000_000;
+
+    @Test
+    public void testVegasStableUnderLoad() {
+        testStableUnderLoad(new VegasLimit(20, 1, 200));
+    }
+
+    @Test
+    public void testGradientStableUnderLoad() {
+        testStableUnderLoad(new GradientLimit(20, 1, 200));
+    }
+
+    @Test
+    public void testVegasFollowsCapacity() {
+        testFollowsCapacity(new VegasLimit(20, 1, 200));
+    }
+
+    @Test
+    public void testGradientFollowsCapacity() {
+        testFollowsCapacity(new GradientLimit(20, 1, 200));
+    }
+
+    @Test
+    public void testVegasFollowsLatency() {
+        testFollowsLatency(new VegasLimit(20, 1, 200));
+    }
+
+    @Test
+    public void testGradientFollowsLatency() {
+        testFollowsLatency(new GradientLimit(20, 1, 200));
+    }
+
+    /** Under constant overload the limit must not swing or drift to the upper bound. */
+    private void testStableUnderLoad(ConcurrencyLimit limit) {
+        Simulation sim = new Simulation(limit, 16);
+        sim.run(5000, 150);
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < 20; i++) {
+            sim.run(1000, 150);
+            min = Math.min(min, limit.getLimit());
+            max = Math.max(max, limit.getLimit());
+        }
+        assertTrue(min >= 16, limit + " below capacity: " + min);
+        assertTrue(max <= 16 * 4, limit + " drifted: " + max);
+        assertTrue(max - min <= max / 4, limit + " swings: " + min + " - " + max);
+    }
+
+    private void testFollowsCapacity(ConcurrencyLimit limit) {
+        Simulation sim = new Simulation(limit, 16);
+        sim.run(10000, 150);
+        int before = limit.getLimit();
+        sim.capacity = 40;
+        sim.run(10000, 150);
+        int after = limit.getLimit();
+        assertTrue(after >= 40, limit + " not grown: " + before + " -> " + after);
+        assertTrue(after <= 40 * 2, limit + " drifted: " + before + " -> " + after);
+    }
+
+    /** A lasting higher latency is measured in phases of low load and becomes the new base. */
+    private void testFollowsLatency(ConcurrencyLimit limit) {
+        Simulation sim = new Simulation(limit, 16);
+        for (int i = 0; i < 10; i++) {
+            sim.run(900, 150);
+            sim.run(100, 4);
+        }
+        int before = limit.getLimit();
+        sim.baseRtt = BASE_RTT * 2;
+        for (int i = 0; i < 20; i++) {
+            sim.run(900, 150);
+            sim.run(100, 4);
+        }
+        int after = limit.getLimit();
+        assertTrue(after >= before * 3 / 4, limit + " collapsed: " + before + " -> " + after);
+        assertTrue(after <= before * 3 / 2, limit + " drifted: " + before + " -> " + after);
+    }
+
+    private static class Simulation {
+        private final ConcurrencyLimit limit;
+        private final Random random = new Random(1);
+        private int capacity;
+        private long baseRtt = BASE_RTT;
+
+        private Simulation(ConcurrencyLimit limit, int capacity) {
+            this.limit = limit;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Report samples of requests.
+         *
+         * @param samples Number of samples
+         * @param offered Requests the clients try to run in parallel
+         */
+        private void run(int samples, int offered) {
+            for (int i = 0; i < samples; i++) {
+                int inflight = Math.min(limit.getLimit(), offered);
+                double jitter = 0.9 + 0.2 * random.nextDouble();
+                double queueing = Math.max(1.0, (double) inflight / capacity);
+                limit.onSample((long) (baseRtt * jitter * queueing), inflight, false);
+            }
+        }
+    }
+}
@@ -15,15 +15,19 @@
  */
 package de.mhus.app.web.core;
 
-import java.util.Collections;
-import java.util.Enumeration;
+import java.io.File;
+import java.lang.reflect.Method;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServletRequest;
@@ -42,6 +46,7 @@ import org.osgi.service.component.annotations.ReferencePolicy;
 
 import de.mhus.app.web.api.CallContext;
 import de.mhus.app.web.api.CherryApi;
+import de.mhus.app.web.api.FileChangeListener;
 import de.mhus.app.web.api.InternalCallContext;
 import de.mhus.app.web.api.TypeHeader;
 import de.mhus.app.web.api.TypeHeaderDynamic;
@@ -49,13 +54,19 @@ import de.mhus.app.web.api.TypeHeaderFactory;
 import de.mhus.app.web.api.TypeHeaderSimple;
 import de.mhus.app.web.api.VirtualHost;
 import de.mhus.app.web.api.WebSession;
+import de.mhus.app.web.api.util.BoundedCache;
+import de.mhus.app.web.api.util.ContentCache;
 import de.mhus.lib.core.M;
 import de.mhus.lib.core.MFile;
 import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.MPeriod;
 import de.mhus.lib.core.MThread;
 import de.mhus.lib.core.aaa.Aaa;
 import de.mhus.lib.core.aaa.SubjectEnvironment;
+import de.mhus.lib.core.cfg.CfgDouble;
 import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.cfg.CfgLong;
+import de.mhus.lib.core.cfg.CfgString;
 import de.mhus.lib.core.logging.ITracer;
 import de.mhus.lib.core.node.INode;
 import de.mhus.lib.errors.MException;
@@ -64,22 +75,82 @@ import de.mhus.osgi.api.util.AbstractServiceTracker;
 import io.opentracing.Scope;
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.noop.NoopTracer;
 import io.opentracing.propagation.Format;
-import io.opentracing.propagation.TextMap;
 import io.opentracing.tag.Tags;
+import io.opentracing.util.GlobalTracer;
 
 @Component(immediate = true)
 public class CherryApiImpl extends MLog implements CherryApi {
 
-    public static final String SESSION_PARAMETER_SESSION = "__cherry_global_session";
     private static CfgInt CFG_MAX_VHOST_CACHE_SIZE =
             new CfgInt(CherryApi.class, "maxVHostCacheSize", 200);
+    private static CfgInt CFG_MAX_SESSIONS = new CfgInt(CherryApi.class, "maxSessions", 100000);
+    private static CfgLong CFG_SESSION_IDLE_TIMEOUT =
+            new CfgLong(CherryApi.class, "sessionIdleTimeout", MPeriod.MINUTE_IN_MILLISECONDS * 30);
+    private static CfgLong CFG_SESSION_MAX_LIFETIME =
+            new CfgLong(CherryApi.class, "sessionMaxLifetime", MPeriod.DAY_IN_MILLISECONDS);
+    private static CfgLong CFG_SESSION_SWEEP_INTERVAL =
+            new CfgLong(CherryApi.class, "sessionSweepInterval", MPeriod.MINUTE_IN_MILLISECONDS);
+    private static CfgString CFG_SESSION_STORE =
+            new CfgString(CherryApi.class, "sessionStore", "memory");
+    private static CfgString CFG_SESSION_FILE =
+            new CfgString(
+                    CherryApi.class,
+                    "sessionFile",
+                    System.getProperty("karaf.data", "data") + "/cherry/sessions.dat");
+    private static CfgInt CFG_MAX_LOADED_SESSIONS =
+            new CfgInt(CherryApi.class, "maxLoadedSessions", 10000);
+    private static CfgLong CFG_SESSION_UNLOAD_AFTER =
+            new CfgLong(CherryApi.class, "sessionUnloadAfter", MPeriod.MINUTE_IN_MILLISECONDS * 5);
+
+    private static CfgDouble CFG_TRACE_SAMPLE_RATE =
+            new CfgDouble(CherryApi.class, "traceSampleRate", 1.0);
+    private static CfgString CFG_TRACE_FLAG_HEADER =
+            new CfgString(CherryApi.class, "traceFlagHeader", "X-Cherry-Trace");
+    private static CfgString CFG_TRACE_HEADERS =
+            new CfgString(
+                    CherryApi.class,
+                    "traceHeaders",
+                    "uber-trace-id,traceparent,tracestate,b3,X-B3-TraceId,X-B3-SpanId,"
+                            + "X-B3-ParentSpanId,X-B3-Sampled,X-B3-Flags");
+
+    private static CfgInt CFG_SUBJECT_CACHE_SIZE =
+            new CfgInt(CherryApi.class, "subjectCacheSize", 10000);
+    private static CfgLong CFG_SUBJECT_CACHE_TTL =
+            new CfgLong(CherryApi.class, "subjectCacheTtl", MPeriod.MINUTE_IN_MILLISECONDS * 5);
+
+    private static CfgString CFG_REQUEST_EXECUTOR =
+            new CfgString(CherryApi.class, "requestExecutor", "container");
+    static CfgLong CFG_ASYNC_TIMEOUT = new CfgLong(CherryApi.class, "asyncTimeout", 0);
+    private static CfgLong CFG_RELOAD_DRAIN_TIMEOUT =
+            new CfgLong(CherryApi.class, "reloadDrainTimeout", MPeriod.MINUTE_IN_MILLISECONDS);
+    private static CfgLong CFG_FILE_WATCH_DEBOUNCE =
+            new CfgLong(CherryApi.class, "fileWatchDebounce", 500);
+    private static CfgLong CFG_FILE_WATCH_MAX_DELAY =
+            new CfgLong(CherryApi.class, "fileWatchMaxDelay", 5000);
+    private static CfgLong CFG_CONTENT_CACHE_SIZE =
+            new CfgLong(CherryApi.class, "contentCacheSize", 64 * 1024 * 1024);
+    private static CfgLong CFG_CONTENT_CACHE_MAX_FILE_SIZE =
+            new CfgLong(CherryApi.class, "contentCacheMaxFileSize", 256 * 1024);
 
     private static CherryApiImpl instance;
     private ThreadLocal<CallContext> calls = new ThreadLocal<>();
-    private WeakHashMap<String, WebSession> globalSession = new WeakHashMap<>();
-    private HashMap<String, VirtualHost> vHosts = new HashMap<>();
-    private HashMap<String, VirtualHost> vHostsCache = new HashMap<>();
+    private SessionStore sessions;
+    private ExecutorService requestExecutor;
+    private FileWatchService fileWatch;
+    private BoundedCache<String, Subject> subjects =
+            new BoundedCache<>(CFG_SUBJECT_CACHE_SIZE.value(), CFG_SUBJECT_CACHE_TTL.value(), 0);
+    private volatile String[] traceHeaders = new String[0];
+    private volatile String traceHeadersCfg;
+    private final Object vHostsLock = new Object();
+    private volatile VirtualHostTable vHosts =
+            new VirtualHostTable(new HashMap<>(), CFG_MAX_VHOST_CACHE_SIZE.value());
+    // registered service -> running instance, differs after a reload
+    private final IdentityHashMap<VirtualHost, VirtualHost> running = new IdentityHashMap<>();
+    // running instance -> requests using it
+    private final ConcurrentHashMap<VirtualHost, Lease> leases = new ConcurrentHashMap<>();
     private LinkedList<TypeHeaderFactory> typeHeaderFactories = new LinkedList<>();
 
     {
@@ -109,43 +180,154 @@ public class CherryApiImpl extends MLog implements CherryApi {
     }
 
     protected void addVirtualHost(VirtualHost service) {
-        synchronized (vHosts) {
-            vHostsCache.clear();
+        LinkedList<VirtualHost> replaced = new LinkedList<>();
+        synchronized (vHostsLock) {
+            // restart of the same instance, it can't wait for the running requests
+            Lease previous = leases.get(service);
+            if (previous != null) previous.stop();
             try {
                 service.start(this);
             } catch (Throwable t) {
                 log().e("Can't add virtual host", service.getName(), t);
                 return;
             }
+            HashMap<String, VirtualHost> hosts = new HashMap<>(vHosts.getHosts());
             Set<String> aliases = service.getVirtualHostAliases();
             for (String alias : aliases) {
                 log().i("add virtual host", alias);
-                VirtualHost old = vHosts.put(alias, service);
-                if (old != null) old.stop(this);
+                VirtualHost old = hosts.put(alias, service);
+                if (old != null && old != service && !replaced.contains(old)) replaced.add(old);
             }
+            // an instance keeps running while it serves one of its aliases
+            replaced.removeIf(old -> hosts.containsValue(old));
+            vHosts = new VirtualHostTable(hosts, CFG_MAX_VHOST_CACHE_SIZE.value());
+            running.values().removeIf(replaced::contains);
+            running.put(service, service);
+            leases.put(service, new Lease(service));
         }
+        for (VirtualHost old : replaced) retireVirtualHost(old);
     }
 
     protected void removeVirtualHost(VirtualHost service) {
-        synchronized (vHosts) {
-            vHostsCache.clear();
-            vHosts.entrySet()
+        VirtualHost current;
+        synchronized (vHostsLock) {
+            VirtualHost reloaded = running.remove(service);
+            current = reloaded == null ? service : reloaded;
+            HashMap<String, VirtualHost> hosts = new HashMap<>(vHosts.getHosts());
+            hosts.entrySet()
                     .removeIf(
                             e -> {
-                                if (service == e.getValue()) {
+                                if (current == e.getValue()) {
                                     log().i("remove virtual host", e.getKey());
                                     return true;
                                 }
                                 return false;
                             });
-            service.stop(this);
+            vHosts = new VirtualHostTable(hosts, CFG_MAX_VHOST_CACHE_SIZE.value());
         }
+        retireVirtualHost(current);
+    }
+
+    /**
+     * Replace a running virtual host by its started successor. The successor is started before the
+     * switch, if it fails the old instance stays active.
+     *
+     * @param host The running instance
+     * @param successor The not started successor
+     */
+    protected void reloadVirtualHost(VirtualHost host, VirtualHost successor) {
+        try {
+            successor.start(this);
+        } catch (Throwable t) {
+            log().e("Can't reload virtual host, keep the running instance", host.getName(), t);
+            successor.stop(this);
+            return;
+        }
+        boolean switched = false;
+        synchronized (vHostsLock) {
+            VirtualHost service = null;
+            for (Map.Entry<VirtualHost, VirtualHost> entry : running.entrySet())
+                if (entry.getValue() == host) service = entry.getKey();
+            if (service != null) {
+                HashMap<String, VirtualHost> hosts = new HashMap<>(vHosts.getHosts());
+                hosts.values().removeIf(v -> v == host);
+                for (String alias : successor.getVirtualHostAliases()) {
+                    log().i("reload virtual host", alias);
+                    hosts.put(alias, successor);
+                }
+                vHosts = new VirtualHostTable(hosts, CFG_MAX_VHOST_CACHE_SIZE.value());
+                running.put(service, successor);
+                leases.put(successor, new Lease(successor));
+                switched = true;
+            }
+        }
+        if (!switched) {
+            // removed or reloaded in the meantime
+            successor.stop(this);
+            return;
+        }
+        retireVirtualHost(host);
+    }
+
+    /**
+     * Stop an instance removed from the host table after its last request. Requests found the
+     * instance before the switch hold a lease, if they don't finish within the drain timeout the
+     * instance is stopped anyway.
+     */
+    private void retireVirtualHost(VirtualHost host) {
+        Lease lease = leases.get(host);
+        if (lease == null) {
+            host.stop(this);
+            return;
+        }
+        if (lease.retire()) return;
+        Thread thread =
+                new Thread(
+                        () -> {
+                            try {
+                                Thread.sleep(CFG_RELOAD_DRAIN_TIMEOUT.value());
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            int inflight = lease.count.get();
+                            if (lease.stop())
+                                log().w(
+                                                "stop virtual host with running requests",
+                                                host.getName(),
+                                                inflight);
+                        },
+                        "cherry-vhost-drain");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     @Activate
     public void doActivate(ComponentContext ctx) {
         log().i("Start Cherry");
         instance = this;
+        if ("mapped".equals(CFG_SESSION_STORE.value()))
+            sessions =
+                    new MappedSessionStore(
+                            new File(CFG_SESSION_FILE.value()),
+                            CFG_MAX_SESSIONS.value(),
+                            CFG_MAX_LOADED_SESSIONS.value(),
+                            CFG_SESSION_IDLE_TIMEOUT.value(),
+                            CFG_SESSION_MAX_LIFETIME.value(),
+                            CFG_SESSION_UNLOAD_AFTER.value());
+        else
+            sessions =
+                    new MemorySessionStore(
+                            CFG_MAX_SESSIONS.value(),
+                            CFG_SESSION_IDLE_TIMEOUT.value(),
+                            CFG_SESSION_MAX_LIFETIME.value());
+        sessions.start(CFG_SESSION_SWEEP_INTERVAL.value());
+        requestExecutor = createRequestExecutor(CFG_REQUEST_EXECUTOR.value());
+        fileWatch =
+                new FileWatchService(
+                        CFG_FILE_WATCH_DEBOUNCE.value(), CFG_FILE_WATCH_MAX_DELAY.value());
+        fileWatch.start();
+        ContentCache.instance().setBudget(CFG_CONTENT_CACHE_SIZE.value());
+        ContentCache.instance().setMaxFileSize(CFG_CONTENT_CACHE_MAX_FILE_SIZE.value());
         vHostTracker.start(ctx);
     }
 
@@ -153,9 +335,53 @@ public class CherryApiImpl extends MLog implements CherryApi {
     public void doDeactivate(ComponentContext ctx) {
         log().i("Stop Cherry");
         vHostTracker.stop();
+        fileWatch.stop();
+        sessions.stop();
+        if (requestExecutor != null) requestExecutor.shutdown();
+        requestExecutor = null;
         instance = null;
     }
 
+    private ExecutorService createRequestExecutor(String type) {
+        if (!"virtual".equals(type)) return null;
+        try {
+            // available since java 21, the bundle is compiled for older versions
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) factory.invoke(null);
+            log().i("dispatch requests with virtual threads");
+            return executor;
+        } catch (Throwable t) {
+            log().w("virtual threads not supported, dispatch with container threads", t.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Return the executor to dispatch requests or null if requests are dispatched in the container
+     * threads.
+     *
+     * @return The executor or null
+     */
+    public ExecutorService getRequestExecutor() {
+        return requestExecutor;
+    }
+
+    public FileWatchService getFileWatchService() {
+        return fileWatch;
+    }
+
+    @Override
+    public boolean watch(File path, FileChangeListener listener) {
+        FileWatchService current = fileWatch;
+        return current != null && current.watch(path, listener);
+    }
+
+    @Override
+    public void unwatch(FileChangeListener listener) {
+        FileWatchService current = fileWatch;
+        if (current != null) current.unwatch(listener);
+    }
+
     @Override
     public CallContext getCurrentCall() {
         return calls.get();
@@ -163,30 +389,11 @@ public class CherryApiImpl extends MLog implements CherryApi {
 
     @Override
     public VirtualHost findVirtualHost(String host) {
-        synchronized (vHosts) {
-            // get from cache
-            VirtualHost vHost = null;
-            vHost = vHostsCache.get(host);
-            if (vHost != null) return vHost;
-
-            // lookup
-            vHost = vHosts.get(host);
-            if (vHost == null) {
-                // remove port
-                String h = host;
-                int p = h.indexOf(':');
-                if (p > 0) h = h.substring(0, p) + ":*";
-                else h = h + ":*";
-                vHost = vHosts.get(h);
-            }
-            if (vHost == null) {
-                vHost = vHosts.get("*");
-            }
-            // save to cache
-            if (vHost != null && vHostsCache.size() < CFG_MAX_VHOST_CACHE_SIZE.value())
-                vHostsCache.put(host, vHost);
-            return vHost;
-        }
+        return vHosts.find(host);
+    }
+
+    public VirtualHostTable getVirtualHostTable() {
+        return vHosts;
     }
 
     @Override
@@ -196,22 +403,16 @@ public class CherryApiImpl extends MLog implements CherryApi {
     }
 
     public boolean isCherrySession(String sessionId) {
-        WebSession ret = globalSession.get(sessionId);
-        return ret != null;
+        return sessions.contains(sessionId);
     }
 
     public WebSession getCherrySession(CallContext context, String sessionId) {
-        WebSession ret = globalSession.get(sessionId);
-        if (ret == null) {
-            if (context == null) return null;
-            ret = new CherrySession(sessionId);
-            globalSession.put(sessionId, ret);
-            // put into http session to create a reference until http session time out
-            context.getHttpRequest()
-                    .getSession()
-                    .setAttribute(SESSION_PARAMETER_SESSION, globalSession);
-        }
-        return ret;
+        if (context == null) return sessions.get(sessionId);
+        return sessions.getOrCreate(sessionId);
+    }
+
+    public SessionStore getSessionStore() {
+        return sessions;
     }
 
     public void setCallContext(CherryCallContext callContext) {
@@ -231,10 +432,20 @@ public class CherryApiImpl extends MLog implements CherryApi {
             if (response.isCommitted()) return null;
         }
 
-        // find vhost
+        // find vhost and hold it until the request is ended
         String host = request.getHeader("Host");
-        VirtualHost vHost = findVirtualHost(host);
-        if (vHost == null) return null;
+        VirtualHost vHost;
+        while (true) {
+            vHost = findVirtualHost(host);
+            if (vHost == null) return null;
+            Lease lease = leases.get(vHost);
+            if (lease == null) break;
+            if (lease.acquire()) {
+                request.setAttribute("_cherry_lease", lease);
+                break;
+            }
+            // retired after the lookup, the table contains the successor
+        }
 
         // create call context
         CherryCallContext call = new CherryCallContext(servlet, request, response, vHost);
@@ -244,11 +455,22 @@ public class CherryApiImpl extends MLog implements CherryApi {
 
     @Override
     public Map<String, VirtualHost> getVirtualHosts() {
-        return Collections.unmodifiableMap(vHosts);
+        return vHosts.getHosts();
     }
 
     @Override
     public void restart(VirtualHost host) {
+        VirtualHost successor;
+        try {
+            successor = host.createSuccessor();
+        } catch (Throwable t) {
+            log().e("Can't reload virtual host, keep the running instance", host.getName(), t);
+            return;
+        }
+        if (successor != null) {
+            reloadVirtualHost(host, successor);
+            return;
+        }
         removeVirtualHost(host);
         addVirtualHost(host);
     }
@@ -263,68 +485,38 @@ public class CherryApiImpl extends MLog implements CherryApi {
         @SuppressWarnings("unused")
         SubjectEnvironment access = null;
         MThread.cleanup();
-        if (session != null && session.getAttribute("_access_session_id") != null) {
-            Subject subject =
-                    Aaa.createSubjectFromSessionId(
-                            (String) session.getAttribute("_access_session_id"));
+        String accessSessionId =
+                session == null ? null : (String) session.getAttribute(SESSION_ACCESS_ID);
+        if (accessSessionId != null) {
+            Subject subject = subjects.get(accessSessionId, Aaa::createSubjectFromSessionId);
             request.setAttribute("_access_subject", subject);
             access = Aaa.asSubject(subject);
         }
         // reset aaa context on error
         try {
             // tracing
-            Scope scope = null;
-            SpanContext parentSpanCtx =
-                    ITracer.get()
-                            .tracer()
-                            .extract(
-                                    Format.Builtin.HTTP_HEADERS,
-                                    new TextMap() {
-
-                                        @Override
-                                        public Iterator<Entry<String, String>> iterator() {
-                                            final Enumeration<String> enu =
-                                                    request.getHeaderNames();
-                                            return new Iterator<Entry<String, String>>() {
-                                                @Override
-                                                public boolean hasNext() {
-                                                    return enu.hasMoreElements();
-                                                }
-
-                                                @Override
-                                                public Entry<String, String> next() {
-                                                    final String key = enu.nextElement();
-                                                    return new Entry<String, String>() {
-
-                                                        @Override
-                                                        public String getKey() {
-                                                            return key;
-                                                        }
-
-                                                        @Override
-                                                        public String getValue() {
-                                                            return request.getHeader(key);
-                                                        }
-
-                                                        @Override
-                                                        public String setValue(String value) {
-                                                            return null;
-                                                        }
-                                                    };
-                                                }
-                                            };
-                                        }
-
-                                        @Override
-                                        public void put(String key, String value) {}
-                                    });
-
             String trace = request.getParameter("_trace");
+            Tracer tracer = ITracer.get().tracer();
+            // without a tracer the headers are not read at all
+            if (trace != null || isTracerActive(tracer)) startTrace(request, tracer, trace);
+        } catch (Throwable t) {
+            Aaa.subjectCleanup();
+            throw t;
+        }
+    }
+
+    private void startTrace(HttpServletRequest request, Tracer tracer, String trace) {
+        TraceHeaderCarrier carrier = TraceHeaderCarrier.get();
+        try {
+            boolean propagated = carrier.load(request, getTraceHeaders());
+            if (!isTraceSampled(trace, propagated, request)) return;
+            Scope scope = null;
+            SpanContext parentSpanCtx = null;
+            if (propagated) parentSpanCtx = tracer.extract(Format.Builtin.HTTP_HEADERS, carrier);
             if (parentSpanCtx == null) {
                 scope = ITracer.get().start("rest", trace);
-            } else if (parentSpanCtx != null) {
-                Span span =
-                        ITracer.get().tracer().buildSpan("rest").asChildOf(parentSpanCtx).start();
+            } else {
+                Span span = tracer.buildSpan("rest").asChildOf(parentSpanCtx).start();
                 scope = ITracer.get().activate(span);
                 ITracer.get().activate(trace);
             }
@@ -337,10 +529,66 @@ public class CherryApiImpl extends MLog implements CherryApi {
             }
 
             request.setAttribute("_tracer_scope", scope);
-        } catch (Throwable t) {
-            Aaa.subjectCleanup();
-            throw t;
+        } finally {
+            carrier.clear();
+        }
+    }
+
+    private static boolean isTracerActive(Tracer tracer) {
+        if (tracer == null || tracer instanceof NoopTracer) return false;
+        return !(tracer instanceof GlobalTracer) || GlobalTracer.isRegistered();
+    }
+
+    /**
+     * Decide if the request will be traced. A _trace parameter always traces. Requests with
+     * propagation headers or the trace flag header are traced, all others are sampled with the
+     * configured rate.
+     */
+    private boolean isTraceSampled(String trace, boolean propagated, HttpServletRequest request) {
+        if (trace != null) return true;
+        if (propagated) return true;
+        String flag = CFG_TRACE_FLAG_HEADER.value();
+        if (flag != null && flag.length() > 0 && request.getHeader(flag) != null) return true;
+        double rate = CFG_TRACE_SAMPLE_RATE.value();
+        if (rate >= 1) return true;
+        if (rate <= 0) return false;
+        return ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private String[] getTraceHeaders() {
+        String cfg = CFG_TRACE_HEADERS.value();
+        if (cfg != traceHeadersCfg) {
+            String[] headers = cfg == null ? new String[0] : cfg.split(",");
+            for (int i = 0; i < headers.length; i++) headers[i] = headers[i].trim();
+            traceHeaders = headers;
+            traceHeadersCfg = cfg;
         }
+        return traceHeaders;
+    }
+
+    /**
+     * Release the thread bound state of a request switched to async mode. The state is bound
+     * again to the thread finishing the request with resumeRequest().
+     */
+    public void suspendRequest(
+            Servlet servlet, HttpServletRequest request, HttpServletResponse response) {
+        Span span = ITracer.get().current();
+        if (span != null) request.setAttribute("_tracer_span", span);
+        Scope scope = (Scope) request.getAttribute("_tracer_scope");
+        if (scope != null) {
+            request.removeAttribute("_tracer_scope");
+            scope.close();
+        }
+        MThread.cleanup();
+    }
+
+    public void resumeRequest(
+            Servlet servlet, HttpServletRequest request, HttpServletResponse response) {
+        MThread.cleanup();
+        Subject subject = (Subject) request.getAttribute("_access_subject");
+        if (subject != null) Aaa.asSubject(subject);
+        Span span = (Span) request.getAttribute("_tracer_span");
+        if (span != null) request.setAttribute("_tracer_scope", ITracer.get().activate(span));
     }
 
     public void endRequest(
@@ -349,6 +597,11 @@ public class CherryApiImpl extends MLog implements CherryApi {
             // could also use ScopeManager
             ((Scope) request.getAttribute("_tracer_scope")).close();
         }
+        Lease lease = (Lease) request.getAttribute("_cherry_lease");
+        if (lease != null) {
+            request.removeAttribute("_cherry_lease");
+            lease.release();
+        }
 
         MThread.cleanup();
     }
@@ -386,7 +639,56 @@ public class CherryApiImpl extends MLog implements CherryApi {
         }
     }
 
+    @Override
+    public void invalidateSubject(String accessSessionId) {
+        if (accessSessionId == null) return;
+        subjects.remove(accessSessionId);
+    }
+
+    public BoundedCache<String, Subject> getSubjectCache() {
+        return subjects;
+    }
+
     public LinkedList<TypeHeaderFactory> getTypeHeaderFactories() {
         return typeHeaderFactories;
     }
+
+    /** Counts the requests using a virtual host instance, the last one stops a retired instance. */
+    private class Lease {
+        private final VirtualHost host;
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicBoolean stopped = new AtomicBoolean();
+        private volatile boolean retired;
+
+        private Lease(VirtualHost host) {
+            this.host = host;
+        }
+
+        private boolean acquire() {
+            count.incrementAndGet();
+            if (!retired) return true;
+            release();
+            return false;
+        }
+
+        private void release() {
+            if (count.decrementAndGet() == 0 && retired) stop();
+        }
+
+        /**
+         * @return true if the instance is stopped already
+         */
+        private boolean retire() {
+            retired = true;
+            return count.get() == 0 && stop();
+        }
+
+        private boolean stop() {
+            if (!stopped.compareAndSet(false, true)) return false;
+            leases.remove(host, this);
+            host.stop(CherryApiImpl.this);
+            log().i("virtual host stopped", host.getName());
+            return true;
+        }
+    }
 }
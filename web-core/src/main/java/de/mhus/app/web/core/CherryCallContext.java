@@ -15,11 +15,18 @@
  */
 package de.mhus.app.web.core;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -33,6 +40,11 @@ import de.mhus.lib.core.logging.MLogUtil;
 
 public class CherryCallContext implements InternalCallContext {
 
+    private static final int ASYNC_DISPATCHING = 0;
+    private static final int ASYNC_SUSPENDING = 1;
+    private static final int ASYNC_SUSPENDED = 2;
+    private static final int ASYNC_DONE = 3;
+
     private HttpServletRequest httpRequest;
     private HttpServletResponse httpResponse;
     private String httpPath;
@@ -41,8 +53,15 @@ public class CherryCallContext implements InternalCallContext {
     private String sessionId;
     private String host;
     private OutputStream outputStream = null;
-    private OutputStreamWriter writer;
+    private volatile OutputStreamWriter writer;
+    private final ReentrantLock lock = new ReentrantLock();
     private String remoteIp;
+    private volatile AsyncContext asyncContext;
+    private final AtomicInteger asyncState = new AtomicInteger(ASYNC_DISPATCHING);
+    private final AtomicReference<Runnable> asyncTask = new AtomicReference<>();
+    private volatile Runnable asyncAbortHandler;
+    private volatile Runnable asyncResume;
+    private volatile Runnable asyncEnd;
 
     public CherryCallContext(
             Servlet servlet, HttpServletRequest req, HttpServletResponse res, VirtualHost vHost) {
@@ -139,14 +158,18 @@ public class CherryCallContext implements InternalCallContext {
     }
 
     @Override
-    public synchronized Writer getWriter() {
-        if (writer == null) {
-            try {
+    public Writer getWriter() {
+        if (writer != null) return writer;
+        lock.lock();
+        try {
+            if (writer == null) {
                 writer = new OutputStreamWriter(outputStream, virtualHost.getCharsetEncoding());
-            } catch (UnsupportedEncodingException e) {
-                MLogUtil.log().e(e);
-                return null;
             }
+        } catch (UnsupportedEncodingException e) {
+            MLogUtil.log().e(e);
+            return null;
+        } finally {
+            lock.unlock();
         }
         return writer;
     }
@@ -160,4 +183,126 @@ public class CherryCallContext implements InternalCallContext {
     public void setRemoteIp(String remoteIp) {
         this.remoteIp = remoteIp;
     }
+
+    @Override
+    public boolean startAsync() {
+        if (asyncContext != null) return true;
+        if (httpRequest == null || !httpRequest.isAsyncSupported()) return false;
+        // already started if dispatched by the request executor
+        if (httpRequest.isAsyncStarted()) asyncContext = httpRequest.getAsyncContext();
+        else asyncContext = httpRequest.startAsync(httpRequest, httpResponse);
+        long timeout = CherryApiImpl.CFG_ASYNC_TIMEOUT.value();
+        if (timeout > 0) asyncContext.setTimeout(timeout);
+        asyncContext.addListener(
+                new AsyncListener() {
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) throws IOException {
+                        MLogUtil.log().w("async request timeout", host, httpPath);
+                        abortAsync(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) throws IOException {}
+
+                    @Override
+                    public void onError(AsyncEvent event) throws IOException {
+                        MLogUtil.log()
+                                .w("async request failed", host, httpPath, event.getThrowable());
+                        abortAsync(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {}
+                });
+        return true;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return asyncContext != null;
+    }
+
+    @Override
+    public void completeAsync(Runnable task) {
+        // the first completion wins, a stage completing after the timeout is ignored
+        if (!asyncTask.compareAndSet(null, task)) return;
+        while (true) {
+            int state = asyncState.get();
+            if (state == ASYNC_SUSPENDED) {
+                // the dispatch is finished, continue in this thread
+                if (asyncState.compareAndSet(ASYNC_SUSPENDED, ASYNC_DONE)) {
+                    asyncResume.run();
+                    try {
+                        runAsyncTask();
+                    } finally {
+                        asyncEnd.run();
+                    }
+                    return;
+                }
+            } else if (state == ASYNC_DONE) {
+                return;
+            } else if (asyncState.compareAndSet(state, ASYNC_DONE)) {
+                // the dispatching thread will execute the task
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void setAsyncAbortHandler(Runnable handler) {
+        asyncAbortHandler = handler;
+    }
+
+    private void abortAsync(int sc) {
+        completeAsync(
+                () -> {
+                    try {
+                        if (!httpResponse.isCommitted()) httpResponse.sendError(sc);
+                    } catch (IOException e) {
+                        MLogUtil.log().t(e);
+                    }
+                    Runnable handler = asyncAbortHandler;
+                    if (handler != null) handler.run();
+                });
+    }
+
+    /**
+     * Called by the servlet after the container dispatch returned. If the call is in async mode
+     * and not finished yet the thread bound state is released and the call will be finished by
+     * the thread completing the call.
+     *
+     * @param suspend Release the thread bound state of the request
+     * @param resume Bind the state of the request to the current thread
+     * @param end End the request
+     * @return true if the call is finished by another thread
+     */
+    public boolean dispatchFinished(Runnable suspend, Runnable resume, Runnable end) {
+        if (asyncContext == null) return false;
+        asyncResume = resume;
+        asyncEnd = end;
+        if (asyncState.compareAndSet(ASYNC_DISPATCHING, ASYNC_SUSPENDING)) {
+            suspend.run();
+            if (asyncState.compareAndSet(ASYNC_SUSPENDING, ASYNC_SUSPENDED)) return true;
+            // completed while suspending
+            resume.run();
+        }
+        runAsyncTask();
+        return false;
+    }
+
+    private void runAsyncTask() {
+        try {
+            asyncTask.get().run();
+        } catch (Throwable t) {
+            MLogUtil.log().w("async task failed", host, httpPath, t);
+        } finally {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // already completed by timeout
+                MLogUtil.log().d("complete async request failed", host, httpPath, e);
+            }
+        }
+    }
 }
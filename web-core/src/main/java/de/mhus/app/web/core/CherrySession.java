@@ -15,6 +15,11 @@
  */
 package de.mhus.app.web.core;
 
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
 import de.mhus.app.web.api.WebSession;
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.MProperties;
@@ -22,10 +27,142 @@ import de.mhus.lib.core.MProperties;
 public class CherrySession extends MProperties implements WebSession {
 
     private String sessionId;
-    private MProperties pub;
+    private volatile MProperties pub;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long created;
+    private volatile long lastAccess;
+    // incremented by modifications, the session is dirty if it differs from the stored version
+    private final AtomicLong version = new AtomicLong(1);
+    private volatile long cleanVersion;
 
     public CherrySession(String sessionId) {
         this.sessionId = sessionId;
+        created = System.currentTimeMillis();
+        lastAccess = created;
+    }
+
+    CherrySession(String sessionId, long created, long lastAccess) {
+        this.sessionId = sessionId;
+        this.created = created;
+        this.lastAccess = lastAccess;
+        cleanVersion = version.get();
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public void touch(long now) {
+        // avoid writing the shared fields on every single call
+        if (now - lastAccess > 1000) lastAccess = now;
+        // objects in the session can be changed without a call of the session
+        if (!isDirty()) modified();
+    }
+
+    /**
+     * Return true if the session was accessed or modified since the version given to clearDirty().
+     *
+     * @return true if possibly modified
+     */
+    public boolean isDirty() {
+        return version.get() != cleanVersion;
+    }
+
+    /**
+     * Return the current version, take it before the session is stored.
+     *
+     * @return The version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Mark the version as stored. Modifications after the version was taken keep the session dirty.
+     *
+     * @param stored The version taken before the session was stored
+     */
+    public void clearDirty(long stored) {
+        cleanVersion = stored;
+    }
+
+    private void modified() {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void setProperty(String key, Object value) {
+        super.setProperty(key, value);
+        modified();
+    }
+
+    @Override
+    public void removeProperty(String key) {
+        super.removeProperty(key);
+        modified();
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Object out = super.put(key, value);
+        modified();
+        return out;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object out = super.remove(key);
+        modified();
+        return out;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Object> m) {
+        super.putAll(m);
+        modified();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        modified();
+    }
+
+    MProperties getPub() {
+        return pub;
+    }
+
+    /**
+     * Rough estimation of the heap used by the session. Only strings and primitive wrappers are
+     * measured, other objects count with a constant.
+     *
+     * @return estimated size in bytes
+     */
+    public long estimateSize() {
+        long size = 128 + sessionId.length() * 2;
+        try {
+            size += estimateSize(this);
+            MProperties p = pub;
+            if (p != null) size += estimateSize(p);
+        } catch (RuntimeException e) {
+            // concurrent modification, the estimation is good enough
+        }
+        return size;
+    }
+
+    private static long estimateSize(MProperties properties) {
+        long size = 64;
+        for (Entry<String, Object> entry : properties.entrySet()) {
+            size += 48 + entry.getKey().length() * 2;
+            Object value = entry.getValue();
+            if (value instanceof String) size += 40 + ((String) value).length() * 2;
+            else size += 32;
+        }
+        return size;
     }
 
     @Override
@@ -34,8 +171,57 @@ public class CherrySession extends MProperties implements WebSession {
     }
 
     @Override
-    public synchronized IProperties pub() {
-        if (pub == null) pub = new MProperties();
-        return pub;
+    public IProperties pub() {
+        MProperties p = pub;
+        if (p != null) return p;
+        lock.lock();
+        try {
+            if (pub == null) pub = new PubProperties();
+            return pub;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Public properties, modifications mark the session modified. */
+    private class PubProperties extends MProperties {
+
+        @Override
+        public void setProperty(String key, Object value) {
+            super.setProperty(key, value);
+            modified();
+        }
+
+        @Override
+        public void removeProperty(String key) {
+            super.removeProperty(key);
+            modified();
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Object out = super.put(key, value);
+            modified();
+            return out;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Object out = super.remove(key);
+            modified();
+            return out;
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends Object> m) {
+            super.putAll(m);
+            modified();
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            modified();
+        }
     }
 }
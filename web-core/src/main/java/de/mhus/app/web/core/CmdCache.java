@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.app.web.api.util.ContentCache;
+import de.mhus.lib.core.MString;
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+
+@Command(scope = "cherry", name = "cache", description = "Static content cache")
+@Service
+public class CmdCache extends AbstractCmd {
+
+    @Argument(
+            index = 0,
+            name = "cmd",
+            required = true,
+            description = "Command: stats, clear",
+            multiValued = false)
+    String cmd;
+
+    @Override
+    public Object execute2() throws Exception {
+
+        ContentCache cache = ContentCache.instance();
+
+        if (cmd.equals("stats")) {
+            long hits = cache.getHitCount();
+            long misses = cache.getMissCount();
+            System.out.println("Entries   : " + cache.size());
+            System.out.println(
+                    "Occupancy : "
+                            + MString.toByteDisplayString(cache.getUsed())
+                            + " / "
+                            + MString.toByteDisplayString(cache.getBudget()));
+            System.out.println(
+                    "Max File  : " + MString.toByteDisplayString(cache.getMaxFileSize()));
+            System.out.println("Hits      : " + hits);
+            System.out.println("Misses    : " + misses);
+            System.out.println("Hit Rate  : " + toPercent(hits, misses));
+            System.out.println("Evictions : " + cache.getEvictionCount());
+            System.out.println("Rejections: " + cache.getRejectionCount());
+            ConsoleTable out = new ConsoleTable(tblOpt);
+            out.setHeaderValues("VHost", "Entries", "Used", "Quota", "Hits", "Misses", "Hit Rate");
+            for (ContentCache.Quota quota : cache.getQuotas())
+                out.addRowValues(
+                        quota.getName(),
+                        quota.getEntries(),
+                        MString.toByteDisplayString(quota.getUsed()),
+                        MString.toByteDisplayString(quota.getLimit()),
+                        quota.getHitCount(),
+                        quota.getMissCount(),
+                        toPercent(quota.getHitCount(), quota.getMissCount()));
+            out.print(System.out);
+        } else if (cmd.equals("clear")) {
+            cache.clear();
+            System.out.println("OK");
+        } else {
+            System.out.println("Unknown command");
+        }
+        return null;
+    }
+
+    private String toPercent(long hits, long misses) {
+        if (hits + misses == 0) return "-";
+        return String.format("%.1f%%", hits * 100d / (hits + misses));
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.apache.shiro.subject.Subject;
+
+import de.mhus.app.web.api.util.BoundedCache;
+import de.mhus.lib.core.MCast;
+import de.mhus.lib.core.MPeriod;
+import de.mhus.lib.core.MString;
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+
+@Command(scope = "cherry", name = "session", description = "Session Management")
+@Service
+public class CmdSession extends AbstractCmd {
+
+    @Argument(
+            index = 0,
+            name = "cmd",
+            required = true,
+            description = "Command: list [max], info <id>, remove <id>, stats, cleanup, clear",
+            multiValued = false)
+    String cmd;
+
+    @Argument(
+            index = 1,
+            name = "parameters",
+            required = false,
+            description = "Parameters",
+            multiValued = true)
+    String[] parameters;
+
+    @Override
+    public Object execute2() throws Exception {
+
+        SessionStore store = CherryApiImpl.instance().getSessionStore();
+
+        if (cmd.equals("list")) {
+            int max = parameters == null ? 100 : MCast.toint(parameters[0], 100);
+            ConsoleTable out = new ConsoleTable(tblOpt);
+            // only sessions currently held on the heap
+            out.setHeaderValues("Id", "Created", "Last Access", "Entries", "Memory");
+            List<CherrySession> list = store.getSessions();
+            list.sort((a, b) -> Long.compare(b.getLastAccess(), a.getLastAccess()));
+            for (CherrySession session : list) {
+                if (max-- <= 0) break;
+                out.addRowValues(
+                        session.getSessionId(),
+                        new Date(session.getCreated()),
+                        new Date(session.getLastAccess()),
+                        session.size(),
+                        MString.toByteDisplayString(session.estimateSize()));
+            }
+            out.print(System.out);
+        } else if (cmd.equals("info")) {
+            CherrySession session = store.get(parameters[0]);
+            if (session == null) {
+                System.out.println("Session not found");
+                return null;
+            }
+            System.out.println("Id         : " + session.getSessionId());
+            System.out.println("Created    : " + new Date(session.getCreated()));
+            System.out.println("Last Access: " + new Date(session.getLastAccess()));
+            System.out.println("Memory     : " + session.estimateSize());
+            for (Entry<String, Object> entry : session.entrySet())
+                System.out.println("Property: " + entry.getKey() + "=" + entry.getValue());
+            for (Entry<String, Object> entry : session.pub().entrySet())
+                System.out.println("Public  : " + entry.getKey() + "=" + entry.getValue());
+        } else if (cmd.equals("remove")) {
+            CherrySession session = store.remove(parameters[0]);
+            System.out.println(session == null ? "Session not found" : "OK");
+        } else if (cmd.equals("stats")) {
+            System.out.println("Store       : " + store.getClass().getSimpleName());
+            System.out.println("Sessions    : " + store.size() + " / " + store.getMaxSize());
+            System.out.println(
+                    "Memory      : " + MString.toByteDisplayString(store.estimateMemory()));
+            System.out.println(
+                    "Idle Timeout: " + MPeriod.getIntervalAsString(store.getIdleTimeout()));
+            System.out.println(
+                    "Max Lifetime: " + MPeriod.getIntervalAsString(store.getMaxLifetime()));
+            System.out.println("Created     : " + store.getCreatedCount());
+            System.out.println("Expired     : " + store.getExpiredCount());
+            System.out.println("Evicted     : " + store.getEvictedCount());
+            BoundedCache<String, Subject> subjects = CherryApiImpl.instance().getSubjectCache();
+            System.out.println(
+                    "Subjects    : "
+                            + subjects.size()
+                            + " / "
+                            + subjects.getMaxSize()
+                            + " hits "
+                            + subjects.getHitCount()
+                            + " misses "
+                            + subjects.getMissCount());
+            if (store instanceof MappedSessionStore) {
+                MappedSessionStore mapped = (MappedSessionStore) store;
+                System.out.println("File        : " + mapped.getFile());
+                System.out.println(
+                        "File Size   : " + MString.toByteDisplayString(mapped.getFileSize()));
+                System.out.println(
+                        "Dead Bytes  : " + MString.toByteDisplayString(mapped.getDeadBytes()));
+                System.out.println("Loaded      : " + mapped.getLoadedSize());
+                System.out.println("Loads       : " + mapped.getLoadCount());
+                System.out.println("Flushes     : " + mapped.getFlushCount());
+            }
+        } else if (cmd.equals("cleanup")) {
+            System.out.println("Removed: " + store.cleanup());
+        } else if (cmd.equals("clear")) {
+            store.clear();
+            System.out.println("OK");
+        } else {
+            System.out.println("Unknown command");
+        }
+        return null;
+    }
+}
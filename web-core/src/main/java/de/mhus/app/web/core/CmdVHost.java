@@ -15,6 +15,8 @@
  */
 package de.mhus.app.web.core;
 
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Map.Entry;
 
 import org.apache.karaf.shell.api.action.Argument;
@@ -25,6 +27,10 @@ import org.osgi.framework.Bundle;
 import de.mhus.app.web.api.CallContext;
 import de.mhus.app.web.api.TypeHeaderFactory;
 import de.mhus.app.web.api.VirtualHost;
+import de.mhus.app.web.api.VirtualHostStatistics;
+import de.mhus.app.web.api.util.AdmissionControl;
+import de.mhus.app.web.api.util.BoundedCache;
+import de.mhus.app.web.api.util.LatencyHistogram;
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.console.ConsoleTable;
 import de.mhus.osgi.api.karaf.AbstractCmd;
@@ -38,7 +44,8 @@ public class CmdVHost extends AbstractCmd {
             name = "cmd",
             required = true,
             description =
-                    "Command: list, info, config, use, release, current, restart, headerfactories",
+                    "Command: list, info, config, use, release, current, restart,"
+                            + " headerfactories, cache, match, stats [vhost] [reset], admission",
             multiValued = false)
     String cmd;
 
@@ -108,6 +115,97 @@ public class CmdVHost extends AbstractCmd {
             return null;
         }
 
+        if (cmd.equals("cache")) {
+            BoundedCache<String, HostRule> cache =
+                    CherryApiImpl.instance().getVirtualHostTable().getCache();
+            System.out.println("Size      : " + cache.size() + " / " + cache.getMaxSize());
+            System.out.println("Hits      : " + cache.getHitCount());
+            System.out.println("Misses    : " + cache.getMissCount());
+            System.out.println("Evictions : " + cache.getEvictionCount());
+            System.out.println("Rejections: " + cache.getRejectionCount());
+            return null;
+        }
+
+        if (cmd.equals("stats") && host == null) {
+            ConsoleTable out = new ConsoleTable(tblOpt);
+            out.setHeaderValues(
+                    "Name",
+                    "Requests",
+                    "Inflight",
+                    "Req/s",
+                    "p50 ms",
+                    "p99 ms",
+                    "p999 ms",
+                    "Max ms");
+            HashSet<VirtualHost> done = new HashSet<>();
+            for (VirtualHost vhost : CherryApiImpl.instance().getVirtualHosts().values()) {
+                if (!done.add(vhost)) continue;
+                VirtualHostStatistics stats = vhost.getStatistics();
+                if (stats == null) continue;
+                LatencyHistogram total = stats.getTotal();
+                out.addRowValues(
+                        vhost.getName(),
+                        total.getCount(),
+                        stats.getInflight(),
+                        String.format("%.2f", stats.getThroughput()),
+                        toMillis(total.getPercentile(50)),
+                        toMillis(total.getPercentile(99)),
+                        toMillis(total.getPercentile(99.9)),
+                        toMillis(total.getMax()));
+            }
+            out.print(System.out);
+            return null;
+        }
+
+        if (cmd.equals("admission")) {
+            ConsoleTable out = new ConsoleTable(tblOpt);
+            out.setHeaderValues(
+                    "Name",
+                    "Algorithm",
+                    "Limit",
+                    "Inflight",
+                    "Queued",
+                    "Max Queue",
+                    "Accepted",
+                    "Rejected",
+                    "Timeouts");
+            HashSet<VirtualHost> done = new HashSet<>();
+            for (VirtualHost vhost : CherryApiImpl.instance().getVirtualHosts().values()) {
+                if (!done.add(vhost)) continue;
+                AdmissionControl admission = vhost.getAdmissionControl();
+                if (admission == null) {
+                    out.addRowValues(vhost.getName(), "-", "", "", "", "", "", "", "");
+                    continue;
+                }
+                out.addRowValues(
+                        vhost.getName(),
+                        admission.getAlgorithm(),
+                        admission.getLimit(),
+                        admission.getInflight(),
+                        admission.getQueued(),
+                        admission.getMaxQueue(),
+                        admission.getAccepted(),
+                        admission.getRejected(),
+                        admission.getTimeouts());
+            }
+            out.print(System.out);
+            return null;
+        }
+
+        if (cmd.equals("match")) {
+            // don't change cache and statistics by the diagnostic lookup
+            HostRule rule = CherryApiImpl.instance().getVirtualHostTable().matchRule(host);
+            if (rule == null) {
+                System.out.println("No rule matches: " + host);
+                return null;
+            }
+            System.out.println("Alias: " + rule.getAlias());
+            System.out.println("Rule : " + rule.getType());
+            System.out.println("Name : " + rule.getVirtualHost().getName());
+            System.out.println("Class: " + rule.getVirtualHost().getClass().getCanonicalName());
+            return null;
+        }
+
         if (cmd.equals("headerfactories")) {
             for (TypeHeaderFactory factory : CherryApiImpl.instance().getTypeHeaderFactories()) {
                 System.out.println("> " + factory.getClass().getCanonicalName() + ": " + factory);
@@ -125,6 +223,44 @@ public class CmdVHost extends AbstractCmd {
                     new CherryCallContext(null, null, new CherryResponseWrapper(null), vhost);
             CherryApiImpl.instance().setCallContext(callContext);
             printCurrentVHost();
+        } else if (cmd.equals("stats")) {
+            VirtualHostStatistics stats = vhost.getStatistics();
+            if (stats == null) {
+                System.out.println("Statistics not supported");
+                return null;
+            }
+            if (parameters != null && parameters.length > 0 && parameters[0].equals("reset")) {
+                stats.reset();
+                System.out.println("OK");
+                return null;
+            }
+            ConsoleTable out = new ConsoleTable(tblOpt);
+            out.setHeaderValues(
+                    "Method", "Count", "1xx", "2xx", "3xx", "4xx", "5xx", "Mean ms", "p50 ms",
+                    "p99 ms", "p999 ms", "Max ms");
+            for (int m = 0; m < VirtualHostStatistics.METHODS.length; m++) {
+                LatencyHistogram histogram = stats.getHistogram(m);
+                if (histogram == null) continue;
+                out.addRowValues(
+                        VirtualHostStatistics.METHODS[m],
+                        histogram.getCount(),
+                        stats.getCount(m, 1),
+                        stats.getCount(m, 2),
+                        stats.getCount(m, 3),
+                        stats.getCount(m, 4),
+                        stats.getCount(m, 5),
+                        String.format("%.3f", histogram.getMean() / 1000),
+                        toMillis(histogram.getPercentile(50)),
+                        toMillis(histogram.getPercentile(99)),
+                        toMillis(histogram.getPercentile(99.9)),
+                        toMillis(histogram.getMax()));
+            }
+            out.print(System.out);
+            System.out.println("Since     : " + new Date(stats.getSince()));
+            System.out.println("Requests  : " + stats.getTotal().getCount());
+            System.out.println("Inflight  : " + stats.getInflight());
+            System.out.println(
+                    "Throughput: " + String.format("%.2f", stats.getThroughput()) + " req/s");
         } else if (cmd.equals("restart")) {
             CherryApiImpl.instance().restart(vhost);
             System.out.println("OK");
@@ -135,6 +271,10 @@ public class CmdVHost extends AbstractCmd {
         return null;
     }
 
+    private String toMillis(long micros) {
+        return String.format("%.3f", micros / 1000d);
+    }
+
     private void printCurrentVHost() {
         CallContext currentCall = CherryApiImpl.instance().getCurrentCall();
         if (currentCall != null) {
@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.mhus.app.web.api.FileChangeListener;
+import de.mhus.lib.core.MLog;
+
+/**
+ * One watcher thread for all watched files based on the nio WatchService. Directories are
+ * registered once and shared by all subscriptions. Events are collected until no new event
+ * arrived for the debounce time (or the max delay is reached) and delivered once per listener
+ * with the coalesced set of changed files.
+ *
+ * <p>Listeners are called in a pool of dispatch threads, calls to the same listener are serialized
+ * and changes arriving while the listener is busy are coalesced into its next call. A slow listener
+ * does not delay the events of other listeners.
+ */
+public class FileWatchService extends MLog {
+
+    private final long debounce;
+    private final long maxDelay;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final HashMap<Path, Directory> directories = new HashMap<>();
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private final IdentityHashMap<FileChangeListener, Delivery> deliveries =
+            new IdentityHashMap<>();
+    // only used by the watcher thread
+    private final LinkedHashSet<Path> pending = new LinkedHashSet<>();
+    private WatchService service;
+    private Thread thread;
+    private ExecutorService dispatcher;
+
+    /**
+     * Create the service.
+     *
+     * @param debounce Time in ms without events before changes are delivered
+     * @param maxDelay Maximum time in ms changes are delayed during continuous events
+     */
+    public FileWatchService(long debounce, long maxDelay) {
+        this.debounce = Math.max(1, debounce);
+        this.maxDelay = Math.max(this.debounce, maxDelay);
+    }
+
+    public void start() {
+        lock.lock();
+        try {
+            if (service != null) return;
+            try {
+                service = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                log().w("file watch not supported", e);
+                return;
+            }
+            dispatcher =
+                    Executors.newCachedThreadPool(
+                            r -> {
+                                Thread t = new Thread(r, "cherry-file-watch-dispatch");
+                                t.setDaemon(true);
+                                return t;
+                            });
+            WatchService current = service;
+            thread = new Thread(() -> run(current), "cherry-file-watch");
+            thread.setDaemon(true);
+            thread.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void stop() {
+        lock.lock();
+        try {
+            if (service == null) return;
+            try {
+                service.close();
+            } catch (IOException e) {
+                log().d(e);
+            }
+            thread.interrupt();
+            dispatcher.shutdown();
+            for (Delivery delivery : deliveries.values()) delivery.close();
+            service = null;
+            thread = null;
+            dispatcher = null;
+            directories.clear();
+            subscriptions.clear();
+            deliveries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Watch a file or a directory tree. If a directory created later can't be watched the listener
+     * is informed by onWatchFailed().
+     *
+     * @param file File or directory
+     * @param listener The listener
+     * @return false if the service is not running or a directory can't be watched
+     */
+    public boolean watch(File file, FileChangeListener listener) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        Subscription sub = new Subscription(path, Files.isDirectory(path), listener);
+        lock.lock();
+        try {
+            if (service == null) return false;
+            if (sub.tree) registerTree(sub, path);
+            else if (path.getParent() != null) register(sub, path.getParent());
+            subscriptions.add(sub);
+            deliveries.computeIfAbsent(listener, Delivery::new);
+            return !sub.failed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all subscriptions of the listener.
+     *
+     * @param listener The listener
+     */
+    public void unwatch(FileChangeListener listener) {
+        lock.lock();
+        try {
+            subscriptions.removeIf(
+                    sub -> {
+                        if (sub.listener != listener) return false;
+                        for (Path dir : sub.dirs) release(dir);
+                        return true;
+                    });
+            Delivery delivery = deliveries.remove(listener);
+            if (delivery != null) delivery.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDirectoryCount() {
+        lock.lock();
+        try {
+            return directories.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSubscriptionCount() {
+        lock.lock();
+        try {
+            return subscriptions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void register(Subscription sub, Path dir) {
+        if (!sub.dirs.add(dir)) return;
+        Directory directory = directories.get(dir);
+        if (directory == null) {
+            try {
+                WatchKey key = dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                directory = new Directory(key);
+            } catch (IOException e) {
+                log().w("can't watch directory", dir, e);
+                sub.dirs.remove(dir);
+                sub.failed = true;
+                return;
+            }
+            directories.put(dir, directory);
+        }
+        directory.references++;
+    }
+
+    private void registerTree(Subscription sub, Path root) {
+        try {
+            Files.walkFileTree(
+                    root,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(
+                                Path dir, BasicFileAttributes attrs) {
+                            register(sub, dir);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                            // could be a directory, its subtree is not watched
+                            if (!(exc instanceof NoSuchFileException)) {
+                                log().w("can't watch path", file, exc);
+                                sub.failed = true;
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        } catch (IOException e) {
+            log().w("can't watch tree", root, e);
+            sub.failed = true;
+        }
+    }
+
+    private void release(Path dir) {
+        Directory directory = directories.get(dir);
+        if (directory == null) return;
+        if (--directory.references > 0) return;
+        directory.key.cancel();
+        directories.remove(dir);
+    }
+
+    private void run(WatchService watchService) {
+        long first = 0;
+        long last = 0;
+        while (true) {
+            WatchKey key;
+            try {
+                key =
+                        pending.isEmpty()
+                                ? watchService.take()
+                                : watchService.poll(debounce, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (key != null) {
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        // events are lost, report the directory
+                        pending.add(dir);
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    pending.add(path);
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(path))
+                        onDirectoryCreated(path);
+                }
+                if (!key.reset()) onDirectoryInvalid(dir);
+                if (first == 0) first = now;
+                last = now;
+            }
+            if (!pending.isEmpty() && (now - last >= debounce || now - first >= maxDelay)) {
+                dispatch();
+                first = 0;
+            }
+        }
+    }
+
+    private void onDirectoryCreated(Path dir) {
+        lock.lock();
+        try {
+            for (Subscription sub : subscriptions) {
+                if (!sub.tree || !dir.startsWith(sub.path)) continue;
+                boolean failed = sub.failed;
+                registerTree(sub, dir);
+                if (sub.failed && !failed) {
+                    Delivery delivery = deliveries.get(sub.listener);
+                    if (delivery != null) delivery.offer(null, sub.path.toFile());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onDirectoryInvalid(Path dir) {
+        lock.lock();
+        try {
+            directories.remove(dir);
+            for (Subscription sub : subscriptions) sub.dirs.remove(dir);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        IdentityHashMap<FileChangeListener, Set<File>> changes = new IdentityHashMap<>();
+        lock.lock();
+        try {
+            for (Subscription sub : subscriptions) {
+                for (Path path : pending) {
+                    File changed = null;
+                    if (path.startsWith(sub.path)) changed = path.toFile();
+                    else if (sub.path.startsWith(path)) changed = sub.path.toFile();
+                    if (changed != null)
+                        changes.computeIfAbsent(sub.listener, l -> new LinkedHashSet<>())
+                                .add(changed);
+                }
+            }
+            for (Map.Entry<FileChangeListener, Set<File>> entry : changes.entrySet()) {
+                Delivery delivery = deliveries.get(entry.getKey());
+                if (delivery != null) delivery.offer(entry.getValue(), null);
+            }
+        } finally {
+            lock.unlock();
+        }
+        pending.clear();
+    }
+
+    /**
+     * Serialized calls of one listener in the dispatcher. Changes and failures offered while the
+     * listener is running are collected for the next call. Listeners are called without any lock
+     * of the service, they could watch or unwatch.
+     */
+    private class Delivery implements Runnable {
+        private final FileChangeListener listener;
+        private Set<File> changes = new LinkedHashSet<>();
+        private Set<File> failures = new LinkedHashSet<>();
+        private boolean running;
+        private boolean closed;
+
+        private Delivery(FileChangeListener listener) {
+            this.listener = listener;
+        }
+
+        // called with the service lock
+        private void offer(Set<File> changed, File failed) {
+            synchronized (this) {
+                if (closed) return;
+                if (changed != null) changes.addAll(changed);
+                if (failed != null) failures.add(failed);
+                if (running) return;
+                running = true;
+            }
+            dispatcher.execute(this);
+        }
+
+        private synchronized void close() {
+            closed = true;
+            changes.clear();
+            failures.clear();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Set<File> changed;
+                Set<File> failed;
+                synchronized (this) {
+                    if (closed || changes.isEmpty() && failures.isEmpty()) {
+                        running = false;
+                        return;
+                    }
+                    changed = changes;
+                    failed = failures;
+                    changes = new LinkedHashSet<>();
+                    failures = new LinkedHashSet<>();
+                }
+                try {
+                    for (File file : failed) listener.onWatchFailed(file);
+                    if (!changed.isEmpty()) listener.onFilesChanged(changed);
+                } catch (Throwable t) {
+                    log().e("file change listener failed", listener, t);
+                }
+            }
+        }
+    }
+
+    private static class Directory {
+        private final WatchKey key;
+        private int references;
+
+        private Directory(WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    private static class Subscription {
+        private final Path path;
+        private final boolean tree;
+        private final FileChangeListener listener;
+        private final Set<Path> dirs = new HashSet<>();
+        private boolean failed;
+
+        private Subscription(Path path, boolean tree, FileChangeListener listener) {
+            this.path = path;
+            this.tree = tree;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.mhus.app.web.api.VirtualHost;
+
+/**
+ * Host header matching compiled into a trie of reversed host labels, e.g. 'www.example.com' is
+ * stored as com -> example -> www. Supported aliases:
+ *
+ * <ul>
+ *   <li>'host' - the host without port
+ *   <li>'host:port' - the host with exactly this port
+ *   <li>'host:*' - the host with any or without port
+ *   <li>'*.domain', '*.domain:port', '*.domain:*' - any sub domain (one or more labels) of the
+ *       domain, the domain itself is not matched
+ *   <li>'*' - default for all hosts
+ * </ul>
+ *
+ * Exact rules win over wildcard rules, the deepest wildcard wins over shorter ones and an exact
+ * port wins over the any port rule. Host names are compared case insensitive. Matching walks the
+ * host header once and does not allocate memory.
+ */
+public class HostMatcher {
+
+    private final Node root = new Node();
+    private HostRule defaultRule;
+
+    public HostMatcher(Map<String, VirtualHost> aliases) {
+        for (Entry<String, VirtualHost> entry : aliases.entrySet())
+            add(entry.getKey(), entry.getValue());
+    }
+
+    private void add(String alias, VirtualHost vHost) {
+        if (alias == null) return;
+        String name = alias.trim().toLowerCase();
+        if (name.equals("*") || name.equals("*:*")) {
+            defaultRule = new HostRule(alias, HostRule.TYPE.DEFAULT, vHost);
+            return;
+        }
+        String port = null;
+        int p = portSeparator(name);
+        if (p >= 0) {
+            port = name.substring(p + 1);
+            name = name.substring(0, p);
+        }
+        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        boolean wildcard = false;
+        if (name.equals("*")) {
+            // any host with this port
+            wildcard = true;
+            name = "";
+        } else if (name.startsWith("*.")) {
+            wildcard = true;
+            name = name.substring(2);
+        }
+        Node node = root;
+        if (name.length() > 0) {
+            String[] labels = name.split("\\.");
+            for (int i = labels.length - 1; i >= 0; i--) node = node.add(labels[i]);
+        }
+        Rules rules = wildcard ? node.wildcard() : node.exact();
+        boolean anyPort = "*".equals(port);
+        HostRule.TYPE type =
+                wildcard
+                        ? (anyPort ? HostRule.TYPE.WILDCARD_ANY_PORT : HostRule.TYPE.WILDCARD)
+                        : (anyPort ? HostRule.TYPE.EXACT_ANY_PORT : HostRule.TYPE.EXACT);
+        rules.add(port, new HostRule(alias, type, vHost));
+    }
+
+    /**
+     * Find the matching rule for the host header.
+     *
+     * @param host The host header, e.g. 'www.example.com:8080'
+     * @return The rule or null if no rule matches
+     */
+    public HostRule match(String host) {
+        if (host == null) return defaultRule;
+        int len = host.length();
+        int hostEnd = len;
+        int portStart = -1;
+        int p = portSeparator(host);
+        if (p >= 0) {
+            hostEnd = p;
+            portStart = p + 1;
+        }
+        if (hostEnd > 0 && host.charAt(hostEnd - 1) == '.') hostEnd--;
+
+        HostRule wildcardRule = null;
+        if (root.wildcard != null) wildcardRule = root.wildcard.select(host, portStart, len);
+        Node node = root;
+        int end = hostEnd;
+        while (end > 0) {
+            int start = host.lastIndexOf('.', end - 1) + 1;
+            node = node.child(host, start, end);
+            if (node == null) break;
+            if (start == 0) {
+                if (node.exact != null) {
+                    HostRule rule = node.exact.select(host, portStart, len);
+                    if (rule != null) return rule;
+                }
+                break;
+            }
+            if (node.wildcard != null) {
+                HostRule rule = node.wildcard.select(host, portStart, len);
+                if (rule != null) wildcardRule = rule;
+            }
+            end = start - 1;
+        }
+        if (wildcardRule != null) return wildcardRule;
+        return defaultRule;
+    }
+
+    private static int portSeparator(String host) {
+        if (host.length() > 0 && host.charAt(0) == '[') {
+            // ipv6 address
+            int b = host.indexOf(']');
+            if (b > 0 && b + 1 < host.length() && host.charAt(b + 1) == ':') return b + 1;
+            return -1;
+        }
+        return host.indexOf(':');
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') c += 32;
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static class Rules {
+
+        private HostRule noPort;
+        private HostRule anyPort;
+        private String[] ports = new String[0];
+        private HostRule[] portRules = new HostRule[0];
+
+        private void add(String port, HostRule rule) {
+            if (port == null) noPort = rule;
+            else if (port.equals("*")) anyPort = rule;
+            else {
+                int len = ports.length;
+                String[] p = new String[len + 1];
+                HostRule[] r = new HostRule[len + 1];
+                System.arraycopy(ports, 0, p, 0, len);
+                System.arraycopy(portRules, 0, r, 0, len);
+                p[len] = port;
+                r[len] = rule;
+                ports = p;
+                portRules = r;
+            }
+        }
+
+        private HostRule select(String host, int portStart, int end) {
+            if (portStart < 0) return noPort != null ? noPort : anyPort;
+            int len = end - portStart;
+            for (int i = 0; i < ports.length; i++) {
+                String port = ports[i];
+                if (port.length() == len && port.regionMatches(0, host, portStart, len))
+                    return portRules[i];
+            }
+            return anyPort;
+        }
+    }
+
+    private static class Node {
+
+        private String[] labels;
+        private int[] hashes;
+        private Node[] children;
+        private int size;
+        private Rules exact;
+        private Rules wildcard;
+
+        private Rules exact() {
+            if (exact == null) exact = new Rules();
+            return exact;
+        }
+
+        private Rules wildcard() {
+            if (wildcard == null) wildcard = new Rules();
+            return wildcard;
+        }
+
+        private Node child(String host, int start, int end) {
+            if (labels == null) return null;
+            int len = end - start;
+            int h = hash(host, start, end);
+            int mask = labels.length - 1;
+            int i = h & mask;
+            while (true) {
+                String label = labels[i];
+                if (label == null) return null;
+                if (hashes[i] == h
+                        && label.length() == len
+                        && label.regionMatches(true, 0, host, start, len)) return children[i];
+                i = (i + 1) & mask;
+            }
+        }
+
+        private Node add(String label) {
+            Node child = child(label, 0, label.length());
+            if (child != null) return child;
+            if (labels == null || (size + 1) * 2 > labels.length)
+                resize(labels == null ? 4 : labels.length * 2);
+            child = new Node();
+            insert(label, child);
+            return child;
+        }
+
+        private void insert(String label, Node child) {
+            int h = hash(label, 0, label.length());
+            int mask = labels.length - 1;
+            int i = h & mask;
+            while (labels[i] != null) i = (i + 1) & mask;
+            labels[i] = label;
+            hashes[i] = h;
+            children[i] = child;
+            size++;
+        }
+
+        private void resize(int capacity) {
+            String[] oldLabels = labels;
+            Node[] oldChildren = children;
+            labels = new String[capacity];
+            hashes = new int[capacity];
+            children = new Node[capacity];
+            size = 0;
+            if (oldLabels == null) return;
+            for (int i = 0; i < oldLabels.length; i++)
+                if (oldLabels[i] != null) insert(oldLabels[i], oldChildren[i]);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import de.mhus.app.web.api.VirtualHost;
+
+/**
+ * A compiled alias rule of a virtual host. The rule that matched a host header is returned by the
+ * routing table for diagnostics.
+ */
+public class HostRule {
+
+    public enum TYPE {
+        /** host or host:port */
+        EXACT,
+        /** host:* */
+        EXACT_ANY_PORT,
+        /** *.domain or *.domain:port */
+        WILDCARD,
+        /** *.domain:* */
+        WILDCARD_ANY_PORT,
+        /** * */
+        DEFAULT
+    }
+
+    private final String alias;
+    private final TYPE type;
+    private final VirtualHost virtualHost;
+
+    public HostRule(String alias, TYPE type, VirtualHost virtualHost) {
+        this.alias = alias;
+        this.type = type;
+        this.virtualHost = virtualHost;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public TYPE getType() {
+        return type;
+    }
+
+    public VirtualHost getVirtualHost() {
+        return virtualHost;
+    }
+
+    @Override
+    public String toString() {
+        return alias + " (" + type + ") -> " + virtualHost;
+    }
+}
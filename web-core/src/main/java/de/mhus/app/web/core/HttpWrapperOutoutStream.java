@@ -17,20 +17,42 @@ package de.mhus.app.web.core;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
+import de.mhus.app.web.api.ChannelOutput;
+
 /**
  * This class prevent the call to get output stream to early. It's the first stream in a chain of
  * filter streams
  *
+ * <p>Files are sent with the container method sendContent(ByteBuffer) if available (jetty). The
+ * file is mapped and written by the container without a copy on the heap.
+ *
  * @author mikehummel
  */
-public class HttpWrapperOutoutStream extends OutputStream {
+public class HttpWrapperOutoutStream extends OutputStream implements ChannelOutput {
+
+    private static final ClassValue<Method> SEND_CONTENT =
+            new ClassValue<Method>() {
+                @Override
+                protected Method computeValue(Class<?> type) {
+                    try {
+                        return type.getMethod("sendContent", ByteBuffer.class);
+                    } catch (NoSuchMethodException | SecurityException e) {
+                        return null;
+                    }
+                }
+            };
 
     private HttpServletResponse res;
-    private ServletOutputStream outputStream;
+    private volatile ServletOutputStream outputStream;
 
     public HttpWrapperOutoutStream(HttpServletResponse res) {
         this.res = res;
@@ -38,37 +60,59 @@ public class HttpWrapperOutoutStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        check();
-        outputStream.write(b);
+        check().write(b);
     }
 
-    private synchronized void check() throws IOException {
-        if (outputStream == null) {
-            outputStream = res.getOutputStream();
+    private ServletOutputStream check() throws IOException {
+        ServletOutputStream os = outputStream;
+        if (os == null) {
+            // the response returns always the same stream, no need to lock
+            os = res.getOutputStream();
+            outputStream = os;
         }
+        return os;
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        check();
-        outputStream.write(b);
+        check().write(b);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        check();
-        outputStream.write(b, off, len);
+        check().write(b, off, len);
     }
 
     @Override
     public void flush() throws IOException {
-        check();
-        outputStream.flush();
+        check().flush();
     }
 
     @Override
     public void close() throws IOException {
-        check();
-        outputStream.close();
+        check().close();
+    }
+
+    @Override
+    public boolean sendFile(FileChannel channel, long position, long count) throws IOException {
+        if (count > Integer.MAX_VALUE) return false;
+        if (SEND_CONTENT.get(check().getClass()) == null) return false;
+        return sendBuffer(channel.map(MapMode.READ_ONLY, position, count));
+    }
+
+    @Override
+    public boolean sendBuffer(ByteBuffer content) throws IOException {
+        ServletOutputStream os = check();
+        Method sendContent = SEND_CONTENT.get(os.getClass());
+        if (sendContent == null) return false;
+        try {
+            sendContent.invoke(os, content);
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        return true;
     }
 }
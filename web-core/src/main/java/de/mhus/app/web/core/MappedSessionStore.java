@@ -0,0 +1,779 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.MProperties;
+
+/**
+ * Session store persisting the sessions in a memory mapped file. The file is append only, every
+ * flush of a session appends a new record and a remove appends a tombstone. Only a small index
+ * with the position of the last record per session is held on the heap. Sessions are decoded
+ * from the file on first access and unloaded again after some idle time. Dead records are removed
+ * by rewriting the file if they use more space then the live records.
+ *
+ * <p>File layout: magic, version, then records of [int length][byte type][payload]. A length of 0
+ * marks the end of the data. Strings, numbers, booleans and dates are encoded in a compact binary
+ * form, other values with java serialization. Values that are not serializable are not
+ * persisted.
+ *
+ * <p>Modified sessions are flushed by the sweeper, changes since the last sweep are lost if the
+ * process is killed.
+ */
+public class MappedSessionStore extends MLog implements SessionStore {
+
+    private static final int MAGIC = 0x43485353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 16 * 1024 * 1024;
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+    private static final int EVICTION_SAMPLES = 16;
+
+    private static final byte RECORD_SESSION = 1;
+    private static final byte RECORD_TOMBSTONE = 2;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_INT = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_BOOLEAN = 4;
+    private static final byte VALUE_DOUBLE = 5;
+    private static final byte VALUE_DATE = 6;
+    private static final byte VALUE_SERIALIZED = 7;
+
+    private final File file;
+    private final int maxSize;
+    private final int maxLoaded;
+    private final long idleTimeout;
+    private final long maxLifetime;
+    private final long unloadAfter;
+
+    private final ConcurrentHashMap<String, Slot> index = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CherrySession> loaded = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long position;
+    private long deadBytes;
+    private ScheduledExecutorService sweeper;
+
+    private static class Slot {
+        private final long offset;
+        private final int length;
+        private final long created;
+        private final long lastAccess;
+
+        private Slot(long offset, int length, long created, long lastAccess) {
+            this.offset = offset;
+            this.length = length;
+            this.created = created;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Create a new store.
+     *
+     * @param file The data file, will be created if not exists
+     * @param maxSize Maximum number of sessions
+     * @param maxLoaded Maximum number of sessions held on the heap
+     * @param idleTimeout Remove sessions not accessed for this time in ms, 0 disables
+     * @param maxLifetime Remove sessions older then this time in ms, 0 disables
+     * @param unloadAfter Unload sessions from heap not accessed for this time in ms
+     */
+    public MappedSessionStore(
+            File file,
+            int maxSize,
+            int maxLoaded,
+            long idleTimeout,
+            long maxLifetime,
+            long unloadAfter) {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.maxLoaded = maxLoaded;
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        this.unloadAfter = unloadAfter;
+    }
+
+    @Override
+    public synchronized void start(long sweepInterval) {
+        if (sweeper != null) return;
+        lock.writeLock().lock();
+        try {
+            open();
+        } catch (IOException e) {
+            log().e("can't open session file, start with an empty file", file, e);
+            try {
+                close();
+                File broken = new File(file.getPath() + ".broken");
+                Files.move(file.toPath(), broken.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                open();
+            } catch (IOException e2) {
+                throw new IllegalStateException("can't create session file " + file, e2);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log().i("session file opened", file, index.size(), position);
+        sweeper =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread thread = new Thread(r, "cherry-session-sweeper");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        sweeper.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        cleanup();
+                    } catch (Throwable t) {
+                        log().w("session cleanup failed", t);
+                    }
+                },
+                sweepInterval,
+                sweepInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (sweeper == null) return;
+        sweeper.shutdownNow();
+        sweeper = null;
+        List<Record> records = encodeDirty();
+        lock.writeLock().lock();
+        try {
+            if (buffer == null) return;
+            for (Record record : records) write(record);
+            loaded.clear();
+            buffer.force();
+            close();
+        } catch (IOException e) {
+            log().e("close session file failed", file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public CherrySession get(String sessionId) {
+        if (sessionId == null) return null;
+        long now = System.currentTimeMillis();
+        CherrySession session = loaded.get(sessionId);
+        if (session != null) {
+            if (isExpired(session.getCreated(), session.getLastAccess(), now)) {
+                if (remove(sessionId) != null) expired.increment();
+                return null;
+            }
+            session.touch(now);
+            return session;
+        }
+        Slot slot = index.get(sessionId);
+        if (slot == null) return null;
+        if (isExpired(slot.created, slot.lastAccess, now)) {
+            if (remove(sessionId) != null) expired.increment();
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            slot = index.get(sessionId);
+            if (slot == null || buffer == null) return null;
+            session = read(slot);
+        } catch (Throwable t) {
+            log().w("can't load session", sessionId, t);
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+        loads.increment();
+        CherrySession current = loaded.putIfAbsent(sessionId, session);
+        if (current != null) session = current;
+        if (!index.containsKey(sessionId)) {
+            // removed while loading
+            loaded.remove(sessionId, session);
+            return null;
+        }
+        session.touch(now);
+        return session;
+    }
+
+    @Override
+    public boolean contains(String sessionId) {
+        if (sessionId == null) return false;
+        long now = System.currentTimeMillis();
+        CherrySession session = loaded.get(sessionId);
+        if (session != null) return !isExpired(session.getCreated(), session.getLastAccess(), now);
+        Slot slot = index.get(sessionId);
+        return slot != null && !isExpired(slot.created, slot.lastAccess, now);
+    }
+
+    @Override
+    public CherrySession getOrCreate(String sessionId) {
+        CherrySession session = get(sessionId);
+        if (session != null) return session;
+        CherrySession fresh = new CherrySession(sessionId);
+        session = loaded.putIfAbsent(sessionId, fresh);
+        if (session != null) return session;
+        created.increment();
+        return fresh;
+    }
+
+    @Override
+    public CherrySession remove(String sessionId) {
+        if (sessionId == null) return null;
+        CherrySession session = loaded.remove(sessionId);
+        lock.writeLock().lock();
+        try {
+            Slot slot = index.remove(sessionId);
+            if (slot == null) return session;
+            if (session == null) session = new CherrySession(sessionId, slot.created, 0);
+            deadBytes += slot.length;
+            if (buffer != null) {
+                byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(id.length + 4);
+                DataOutputStream out = new DataOutputStream(bos);
+                out.writeInt(id.length);
+                out.write(id);
+                deadBytes += append(RECORD_TOMBSTONE, bos.toByteArray());
+            }
+        } catch (IOException e) {
+            log().w("can't write tombstone", sessionId, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return session;
+    }
+
+    @Override
+    public int cleanup() {
+        long now = System.currentTimeMillis();
+        int cnt = 0;
+        // expire
+        for (CherrySession session : loaded.values())
+            if (isExpired(session.getCreated(), session.getLastAccess(), now)
+                    && remove(session.getSessionId()) != null) cnt++;
+        for (Entry<String, Slot> entry : index.entrySet()) {
+            Slot slot = entry.getValue();
+            if (isExpired(slot.created, slot.lastAccess, now)
+                    && !loaded.containsKey(entry.getKey())
+                    && remove(entry.getKey()) != null) cnt++;
+        }
+        expired.add(cnt);
+        // flush and unload, the sessions are encoded without the lock, loads are not blocked
+        List<Record> records = encodeDirty();
+        ArrayList<CherrySession> idle = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            if (buffer == null) return cnt;
+            for (Record record : records) write(record);
+            for (CherrySession session : loaded.values()) {
+                if (now - session.getLastAccess() > unloadAfter) idle.add(session);
+            }
+            for (CherrySession session : idle) unload(session);
+            if (loaded.size() > maxLoaded) {
+                ArrayList<CherrySession> list = new ArrayList<>(loaded.values());
+                list.sort((a, b) -> Long.compare(a.getLastAccess(), b.getLastAccess()));
+                for (int i = 0; i < list.size() - maxLoaded; i++) unload(list.get(i));
+            }
+            buffer.force();
+        } catch (IOException e) {
+            log().w("flush sessions failed", file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        evict();
+        // compact
+        lock.writeLock().lock();
+        try {
+            if (buffer != null
+                    && deadBytes > MIN_COMPACT_SIZE
+                    && deadBytes > position - HEADER_SIZE - deadBytes) compact();
+        } catch (IOException e) {
+            log().w("compact session file failed", file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (cnt > 0) log().d("removed expired sessions", cnt);
+        return cnt;
+    }
+
+    private void unload(CherrySession session) {
+        // a session accessed again after the flush stays on the heap
+        if (session.isDirty() || !index.containsKey(session.getSessionId())) return;
+        loaded.remove(session.getSessionId(), session);
+    }
+
+    private void evict() {
+        while (size() > maxSize) {
+            String victim =
+                    findVictim(
+                            Spliterators.iterator(
+                                    RandomSample.of(index.entrySet(), EVICTION_SAMPLES)));
+            // the random part can be empty
+            if (victim == null) victim = findVictim(index.entrySet().iterator());
+            if (victim == null) return;
+            if (remove(victim) != null) evicted.increment();
+        }
+    }
+
+    private String findVictim(Iterator<Entry<String, Slot>> sample) {
+        String victim = null;
+        long victimAccess = Long.MAX_VALUE;
+        int cnt = 0;
+        while (sample.hasNext() && cnt++ < EVICTION_SAMPLES) {
+            Entry<String, Slot> entry = sample.next();
+            CherrySession session = loaded.get(entry.getKey());
+            long access = session == null ? entry.getValue().lastAccess : session.getLastAccess();
+            if (access < victimAccess) {
+                victim = entry.getKey();
+                victimAccess = access;
+            }
+        }
+        return victim;
+    }
+
+    private boolean isExpired(long created, long lastAccess, long now) {
+        if (idleTimeout > 0 && now - lastAccess > idleTimeout) return true;
+        if (maxLifetime > 0 && now - created > maxLifetime) return true;
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        loaded.clear();
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            if (buffer != null) compact();
+        } catch (IOException e) {
+            log().w("clear session file failed", file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = index.size();
+        for (String sessionId : loaded.keySet()) if (!index.containsKey(sessionId)) size++;
+        return size;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @Override
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    @Override
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    @Override
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    public int getLoadedSize() {
+        return loaded.size();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getFileSize() {
+        return position;
+    }
+
+    public long getDeadBytes() {
+        return deadBytes;
+    }
+
+    @Override
+    public long estimateMemory() {
+        long size = index.size() * 120L;
+        for (CherrySession session : loaded.values()) size += session.estimateSize();
+        return size;
+    }
+
+    @Override
+    public List<CherrySession> getSessions() {
+        return new ArrayList<>(loaded.values());
+    }
+
+    // --- file handling, all methods need the write lock
+
+    private void open() throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs())
+            throw new IOException("can't create directory " + dir);
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long capacity = Math.max(INITIAL_CAPACITY, raf.length());
+        map(capacity);
+        index.clear();
+        deadBytes = 0;
+        if (!exists) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            position = HEADER_SIZE;
+            return;
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("unknown session file format " + file);
+        position = HEADER_SIZE;
+        while (position + 5 <= capacity) {
+            int length = buffer.getInt((int) position);
+            if (length == 0) break;
+            if (length < 0 || position + 4 + length > capacity) {
+                log().w("session file is corrupt, ignore the tail", file, position);
+                break;
+            }
+            byte type = buffer.get((int) position + 4);
+            DataInputStream in =
+                    new DataInputStream(new ByteArrayInputStream(bytes(position, length)));
+            in.readByte();
+            String sessionId = readString(in);
+            Slot old;
+            if (type == RECORD_SESSION) {
+                long sCreated = in.readLong();
+                long sLastAccess = in.readLong();
+                old = index.put(sessionId, new Slot(position, length + 4, sCreated, sLastAccess));
+            } else {
+                old = index.remove(sessionId);
+                deadBytes += length + 4;
+            }
+            if (old != null) deadBytes += old.length;
+            position += length + 4;
+        }
+    }
+
+    private void map(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE) throw new IOException("session file too large " + file);
+        if (raf.length() < capacity) raf.setLength(capacity);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void close() throws IOException {
+        buffer = null;
+        if (channel != null) channel.close();
+        if (raf != null) raf.close();
+        channel = null;
+        raf = null;
+    }
+
+    private byte[] bytes(long offset, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position((int) offset + 4);
+        src.get(data);
+        return data;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @return Size of the record in the file
+     */
+    private int append(byte type, byte[] payload) throws IOException {
+        int length = payload.length + 1;
+        long needed = position + 4 + length + 4;
+        if (needed > buffer.capacity()) map(Math.max(needed, buffer.capacity() * 2L));
+        int pos = (int) position;
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(pos + 4);
+        dst.put(type);
+        dst.put(payload);
+        // the length is written at last, a partial record is not visible
+        buffer.putInt(pos, length);
+        position += 4 + length;
+        return 4 + length;
+    }
+
+    /** Encode the sessions to store, the lock is not needed. */
+    private List<Record> encodeDirty() {
+        ArrayList<Record> records = new ArrayList<>();
+        for (CherrySession session : loaded.values()) {
+            if (!session.isDirty() && index.containsKey(session.getSessionId())) continue;
+            // modifications while encoding keep the session dirty
+            long version = session.getVersion();
+            try {
+                records.add(new Record(session, version, encode(session)));
+            } catch (IOException | RuntimeException e) {
+                // concurrent modification, the session stays dirty and is stored next time
+                log().t("encode session failed", session.getSessionId(), e);
+            }
+        }
+        return records;
+    }
+
+    private void write(Record record) throws IOException {
+        CherrySession session = record.session;
+        String sessionId = session.getSessionId();
+        if (loaded.get(sessionId) != session) return; // removed
+        long offset = position;
+        int size = append(RECORD_SESSION, record.payload);
+        Slot old =
+                index.put(
+                        sessionId,
+                        new Slot(offset, size, session.getCreated(), session.getLastAccess()));
+        if (old != null) deadBytes += old.length;
+        session.clearDirty(record.version);
+        flushes.increment();
+    }
+
+    private static class Record {
+        private final CherrySession session;
+        private final long version;
+        private final byte[] payload;
+
+        private Record(CherrySession session, long version, byte[] payload) {
+            this.session = session;
+            this.version = version;
+            this.payload = payload;
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        ArrayList<Entry<String, Slot>> live = new ArrayList<>(index.entrySet());
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            long size = HEADER_SIZE + 4;
+            for (Entry<String, Slot> entry : live) size += entry.getValue().length;
+            out.setLength(Math.max(INITIAL_CAPACITY, size * 2));
+            MappedByteBuffer target =
+                    out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, out.length());
+            target.putInt(MAGIC);
+            target.putInt(VERSION);
+            for (Entry<String, Slot> entry : live) {
+                Slot slot = entry.getValue();
+                int offset = target.position();
+                ByteBuffer src = buffer.duplicate();
+                src.position((int) slot.offset);
+                src.limit((int) slot.offset + slot.length);
+                target.put(src);
+                entry.setValue(new Slot(offset, slot.length, slot.created, slot.lastAccess));
+            }
+            position = target.position();
+            target.force();
+        }
+        close();
+        Files.move(
+                tmp.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        map(raf.length());
+        deadBytes = 0;
+        log().d("session file compacted", file, live.size(), position);
+    }
+
+    // --- encoding
+
+    private CherrySession read(Slot slot) throws IOException, ClassNotFoundException {
+        DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(bytes(slot.offset, slot.length - 4)));
+        in.readByte();
+        String sessionId = readString(in);
+        CherrySession session = new CherrySession(sessionId, in.readLong(), in.readLong());
+        int cnt = in.readInt();
+        for (int i = 0; i < cnt; i++) {
+            String key = readString(in);
+            Object value = readValue(in);
+            if (value != null) session.setProperty(key, value);
+        }
+        cnt = in.readInt();
+        for (int i = 0; i < cnt; i++) {
+            String key = readString(in);
+            Object value = readValue(in);
+            if (value != null) session.pub().setProperty(key, value);
+        }
+        session.clearDirty(session.getVersion());
+        return session;
+    }
+
+    private byte[] encode(CherrySession session) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bos);
+        writeString(out, session.getSessionId());
+        out.writeLong(session.getCreated());
+        out.writeLong(session.getLastAccess());
+        writeProperties(out, session);
+        MProperties pub = session.getPub();
+        if (pub == null) out.writeInt(0);
+        else writeProperties(out, pub);
+        return bos.toByteArray();
+    }
+
+    private void writeProperties(DataOutputStream out, MProperties properties)
+            throws IOException {
+        ArrayList<Entry<String, Object>> entries = new ArrayList<>(properties.entrySet());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream values = new DataOutputStream(bos);
+        int cnt = 0;
+        for (Entry<String, Object> entry : entries) {
+            if (writeValue(values, entry.getKey(), entry.getValue())) cnt++;
+        }
+        out.writeInt(cnt);
+        bos.writeTo(out);
+    }
+
+    private boolean writeValue(DataOutputStream out, String key, Object value)
+            throws IOException {
+        if (value != null && !(value instanceof Serializable)) {
+            log().d("session value not serializable", key, value.getClass());
+            return false;
+        }
+        writeString(out, key);
+        if (value == null) out.writeByte(VALUE_NULL);
+        else if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(VALUE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(VALUE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(value);
+            }
+            out.writeByte(VALUE_SERIALIZED);
+            out.writeInt(bos.size());
+            bos.writeTo(out);
+        }
+        return true;
+    }
+
+    private Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                return readString(in);
+            case VALUE_INT:
+                return in.readInt();
+            case VALUE_LONG:
+                return in.readLong();
+            case VALUE_BOOLEAN:
+                return in.readBoolean();
+            case VALUE_DOUBLE:
+                return in.readDouble();
+            case VALUE_DATE:
+                return new Date(in.readLong());
+            case VALUE_SERIALIZED:
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                try (ObjectInputStream ois =
+                        new ObjectInputStream(new ByteArrayInputStream(data))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException | IOException e) {
+                    log().d("can't restore session value", e);
+                    return null;
+                }
+            default:
+                throw new IOException("unknown value type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.mhus.lib.core.MLog;
+
+/**
+ * Session store holding the cherry sessions on the heap. The sessions are spread over a fixed
+ * number of concurrent maps to keep the per map resize and eviction effort small. Reads are lock
+ * free. Sessions expire after an idle and an absolute timeout and are removed by a background
+ * sweeper. If the maximum size is reached the least recently used session out of a small random
+ * sample is evicted.
+ */
+public class MemorySessionStore extends MLog implements SessionStore {
+
+    private static final int SHARDS = 16;
+    private static final int EVICTION_SAMPLES = 16;
+
+    private final ConcurrentHashMap<String, CherrySession>[] shards;
+    private final long idleTimeout;
+    private final long maxLifetime;
+    private final int maxShardSize;
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * Create a new store.
+     *
+     * @param maxSize Maximum number of sessions
+     * @param idleTimeout Remove sessions not accessed for this time in ms, 0 disables
+     * @param maxLifetime Remove sessions older then this time in ms, 0 disables
+     */
+    @SuppressWarnings("unchecked")
+    public MemorySessionStore(int maxSize, long idleTimeout, long maxLifetime) {
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        maxShardSize = Math.max(1, maxSize / SHARDS);
+        shards = new ConcurrentHashMap[SHARDS];
+        for (int i = 0; i < SHARDS; i++) shards[i] = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public synchronized void start(long sweepInterval) {
+        if (sweeper != null) return;
+        sweeper =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread thread = new Thread(r, "cherry-session-sweeper");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        sweeper.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        cleanup();
+                    } catch (Throwable t) {
+                        log().w("session cleanup failed", t);
+                    }
+                },
+                sweepInterval,
+                sweepInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (sweeper == null) return;
+        sweeper.shutdownNow();
+        sweeper = null;
+    }
+
+    private ConcurrentHashMap<String, CherrySession> shard(String sessionId) {
+        int h = sessionId.hashCode();
+        h ^= h >>> 16;
+        return shards[h & (SHARDS - 1)];
+    }
+
+    @Override
+    public CherrySession get(String sessionId) {
+        if (sessionId == null) return null;
+        ConcurrentHashMap<String, CherrySession> shard = shard(sessionId);
+        CherrySession session = shard.get(sessionId);
+        if (session == null) return null;
+        long now = System.currentTimeMillis();
+        if (isExpired(session, now)) {
+            if (shard.remove(sessionId, session)) expired.increment();
+            return null;
+        }
+        session.touch(now);
+        return session;
+    }
+
+    @Override
+    public boolean contains(String sessionId) {
+        return get(sessionId) != null;
+    }
+
+    @Override
+    public CherrySession getOrCreate(String sessionId) {
+        CherrySession session = get(sessionId);
+        if (session != null) return session;
+        ConcurrentHashMap<String, CherrySession> shard = shard(sessionId);
+        CherrySession fresh = new CherrySession(sessionId);
+        session = shard.putIfAbsent(sessionId, fresh);
+        if (session != null) return session;
+        created.increment();
+        if (shard.size() > maxShardSize) evict(shard, sessionId);
+        return fresh;
+    }
+
+    @Override
+    public CherrySession remove(String sessionId) {
+        if (sessionId == null) return null;
+        return shard(sessionId).remove(sessionId);
+    }
+
+    private void evict(ConcurrentHashMap<String, CherrySession> shard, String keep) {
+        while (shard.size() > maxShardSize) {
+            CherrySession victim =
+                    findVictim(
+                            Spliterators.iterator(
+                                    RandomSample.of(shard.values(), EVICTION_SAMPLES)),
+                            keep);
+            // the random part can be empty
+            if (victim == null) victim = findVictim(shard.values().iterator(), keep);
+            if (victim == null) return;
+            if (shard.remove(victim.getSessionId(), victim)) evicted.increment();
+        }
+    }
+
+    private CherrySession findVictim(Iterator<CherrySession> sample, String keep) {
+        CherrySession victim = null;
+        int cnt = 0;
+        while (sample.hasNext() && cnt < EVICTION_SAMPLES) {
+            CherrySession session = sample.next();
+            if (session.getSessionId().equals(keep)) continue;
+            if (victim == null || session.getLastAccess() < victim.getLastAccess())
+                victim = session;
+            cnt++;
+        }
+        return victim;
+    }
+
+    private boolean isExpired(CherrySession session, long now) {
+        if (idleTimeout > 0 && now - session.getLastAccess() > idleTimeout) return true;
+        if (maxLifetime > 0 && now - session.getCreated() > maxLifetime) return true;
+        return false;
+    }
+
+    @Override
+    public int cleanup() {
+        long now = System.currentTimeMillis();
+        int cnt = 0;
+        for (ConcurrentHashMap<String, CherrySession> shard : shards) {
+            Iterator<CherrySession> iter = shard.values().iterator();
+            while (iter.hasNext()) {
+                if (isExpired(iter.next(), now)) {
+                    iter.remove();
+                    cnt++;
+                }
+            }
+        }
+        expired.add(cnt);
+        if (cnt > 0) log().d("removed expired sessions", cnt);
+        return cnt;
+    }
+
+    @Override
+    public void clear() {
+        for (ConcurrentHashMap<String, CherrySession> shard : shards) shard.clear();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, CherrySession> shard : shards) size += shard.size();
+        return size;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxShardSize * SHARDS;
+    }
+
+    @Override
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @Override
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    @Override
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    @Override
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    @Override
+    public long estimateMemory() {
+        long size = 0;
+        for (ConcurrentHashMap<String, CherrySession> shard : shards)
+            for (CherrySession session : shard.values()) size += session.estimateSize();
+        return size;
+    }
+
+    @Override
+    public List<CherrySession> getSessions() {
+        ArrayList<CherrySession> list = new ArrayList<>(size());
+        for (ConcurrentHashMap<String, CherrySession> shard : shards) list.addAll(shard.values());
+        return list;
+    }
+}
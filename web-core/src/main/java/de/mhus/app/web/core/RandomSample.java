@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Random part of a concurrent collection for sampling. Iterating from the start would always
+ * sample the same entries. The spliterator of ConcurrentHashMap splits the table in halves, a
+ * random half is taken until the part has about the wanted size, that needs log(size) steps.
+ */
+final class RandomSample {
+
+    private RandomSample() {}
+
+    /**
+     * Return the spliterator of a random part of the collection.
+     *
+     * @param values The collection, a view of a ConcurrentHashMap
+     * @param samples Wanted number of entries in the part, it can contain less or more
+     * @return The spliterator of the part
+     */
+    static <T> Spliterator<T> of(Collection<T> values, int samples) {
+        Spliterator<T> part = values.spliterator();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (part.estimateSize() > samples * 2L) {
+            Spliterator<T> prefix = part.trySplit();
+            if (prefix == null) break;
+            if (random.nextBoolean()) part = prefix;
+        }
+        return part;
+    }
+}
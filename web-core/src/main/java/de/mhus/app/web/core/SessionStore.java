@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import java.util.List;
+
+/** Storage of the cherry sessions. */
+public interface SessionStore {
+
+    /**
+     * Start background maintenance.
+     *
+     * @param sweepInterval Interval of the sweeper in ms
+     */
+    void start(long sweepInterval);
+
+    /** Stop background maintenance and release resources. */
+    void stop();
+
+    /**
+     * Return the session if exists and is not expired. The access time of the session will be
+     * updated.
+     *
+     * @param sessionId
+     * @return The session or null
+     */
+    CherrySession get(String sessionId);
+
+    boolean contains(String sessionId);
+
+    /**
+     * Return the session and create a new one if not exists.
+     *
+     * @param sessionId
+     * @return The session
+     */
+    CherrySession getOrCreate(String sessionId);
+
+    CherrySession remove(String sessionId);
+
+    /**
+     * Remove all expired sessions.
+     *
+     * @return Number of removed sessions
+     */
+    int cleanup();
+
+    void clear();
+
+    int size();
+
+    int getMaxSize();
+
+    long getIdleTimeout();
+
+    long getMaxLifetime();
+
+    long getCreatedCount();
+
+    long getExpiredCount();
+
+    long getEvictedCount();
+
+    /**
+     * Estimated heap used by the store.
+     *
+     * @return Size in bytes
+     */
+    long estimateMemory();
+
+    /**
+     * Return the sessions currently held on the heap.
+     *
+     * @return List of sessions
+     */
+    List<CherrySession> getSessions();
+}
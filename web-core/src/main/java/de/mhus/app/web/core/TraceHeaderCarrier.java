@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import io.opentracing.propagation.TextMap;
+
+/**
+ * Read only carrier for the trace propagation headers of a request. The carrier only looks up the
+ * configured header names and is its own iterator and entry, so one instance per thread can be
+ * reused for all requests.
+ */
+public class TraceHeaderCarrier
+        implements TextMap, Iterator<Entry<String, String>>, Entry<String, String> {
+
+    private static final ThreadLocal<TraceHeaderCarrier> carriers =
+            ThreadLocal.withInitial(TraceHeaderCarrier::new);
+
+    private String[] names = new String[0];
+    private String[] values = new String[0];
+    private int size;
+    private int pos;
+
+    public static TraceHeaderCarrier get() {
+        return carriers.get();
+    }
+
+    /**
+     * Load the given headers from the request.
+     *
+     * @param request
+     * @param headers Names of the propagation headers
+     * @return true if at least one propagation header exists
+     */
+    public boolean load(HttpServletRequest request, String[] headers) {
+        if (names.length < headers.length) {
+            names = new String[headers.length];
+            values = new String[headers.length];
+        }
+        size = 0;
+        for (String name : headers) {
+            String value = request.getHeader(name);
+            if (value == null) continue;
+            names[size] = name;
+            values[size] = value;
+            size++;
+        }
+        return size > 0;
+    }
+
+    /** Release the references to the last request. */
+    public void clear() {
+        for (int i = 0; i < size; i++) values[i] = null;
+        size = 0;
+    }
+
+    @Override
+    public Iterator<Entry<String, String>> iterator() {
+        pos = -1;
+        return this;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        throw new UnsupportedOperationException("read only carrier");
+    }
+
+    @Override
+    public boolean hasNext() {
+        return pos + 1 < size;
+    }
+
+    @Override
+    public Entry<String, String> next() {
+        if (pos + 1 >= size) throw new NoSuchElementException();
+        pos++;
+        return this;
+    }
+
+    @Override
+    public String getKey() {
+        return names[pos];
+    }
+
+    @Override
+    public String getValue() {
+        return values[pos];
+    }
+
+    @Override
+    public String setValue(String value) {
+        throw new UnsupportedOperationException("read only carrier");
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import java.util.Collections;
+import java.util.Map;
+
+import de.mhus.app.web.api.VirtualHost;
+import de.mhus.app.web.api.util.BoundedCache;
+
+/**
+ * Immutable routing snapshot of the registered virtual hosts. Every change creates a new table
+ * which is swapped as a whole. Lookups never lock and the cache is dropped together with the old
+ * table. The aliases are compiled into a HostMatcher when the table is created.
+ */
+public class VirtualHostTable {
+
+    private final Map<String, VirtualHost> hosts;
+    private final HostMatcher matcher;
+    private final BoundedCache<String, HostRule> cache;
+
+    public VirtualHostTable(Map<String, VirtualHost> hosts, int cacheSize) {
+        this.hosts = Collections.unmodifiableMap(hosts);
+        matcher = new HostMatcher(hosts);
+        cache = new BoundedCache<>(cacheSize);
+    }
+
+    public VirtualHost find(String host) {
+        HostRule rule = findRule(host);
+        return rule == null ? null : rule.getVirtualHost();
+    }
+
+    /**
+     * Return the alias rule matching the host header.
+     *
+     * @param host The host header
+     * @return The rule or null
+     */
+    public HostRule findRule(String host) {
+        if (host == null) return matcher.match(null);
+
+        // get from cache
+        HostRule rule = cache.get(host);
+        if (rule != null) return rule;
+
+        // lookup
+        rule = matcher.match(host);
+
+        // save to cache
+        if (rule != null) cache.put(host, rule);
+        return rule;
+    }
+
+    /**
+     * Return the alias rule matching the host header without using the cache. The lookup is not
+     * recorded as access, use it for diagnostics.
+     *
+     * @param host The host header
+     * @return The rule or null
+     */
+    public HostRule matchRule(String host) {
+        return matcher.match(host);
+    }
+
+    public Map<String, VirtualHost> getHosts() {
+        return hosts;
+    }
+
+    public BoundedCache<String, HostRule> getCache() {
+        return cache;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.core;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.junit.jupiter.api.Test;
+
+import de.mhus.app.web.api.VirtualHost;
+import de.mhus.app.web.api.util.BoundedCache;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Checks that the request path does not pin the carrier of a virtual thread. The mocked container
+ * objects sleep when they are called, if a monitor is held at that time the runtime reports a
+ * jdk.VirtualThreadPinned event. Needs java 21 or newer, the test is skipped on runtimes without
+ * virtual threads or where monitors don't pin.
+ */
+public class PinningTest {
+
+    @Test
+    public void testOutputStream() throws Exception {
+        HttpServletResponse res =
+                mock(
+                        HttpServletResponse.class,
+                        method -> {
+                            if (!method.getName().equals("getOutputStream")) return null;
+                            block();
+                            return new NullOutputStream();
+                        });
+        assertNotPinned(
+                () -> {
+                    HttpWrapperOutoutStream os = new HttpWrapperOutoutStream(res);
+                    os.write(1);
+                    os.flush();
+                });
+    }
+
+    @Test
+    public void testWriter() throws Exception {
+        HttpSession session = mock(HttpSession.class, method -> "id");
+        HttpServletRequest req =
+                mock(
+                        HttpServletRequest.class,
+                        method -> method.getName().equals("getSession") ? session : null);
+        HttpServletResponse res = mock(HttpServletResponse.class, method -> null);
+        VirtualHost vHost =
+                mock(
+                        VirtualHost.class,
+                        method -> {
+                            if (!method.getName().equals("getCharsetEncoding")) return null;
+                            block();
+                            return "UTF-8";
+                        });
+        assertNotPinned(() -> new CherryCallContext(null, req, res, vHost).getWriter());
+    }
+
+    @Test
+    public void testBoundedCache() throws Exception {
+        BoundedCache<String, String> cache = new BoundedCache<>(10);
+        assertNotPinned(
+                () ->
+                        cache.get(
+                                "key",
+                                key -> {
+                                    block();
+                                    return "value";
+                                }));
+    }
+
+    private void assertNotPinned(Task task) throws Exception {
+        ExecutorService executor = createVirtualExecutor();
+        assumeTrue(executor != null, "virtual threads are not supported");
+        try {
+            Object monitor = new Object();
+            List<RecordedEvent> probe =
+                    record(
+                            executor,
+                            () -> {
+                                synchronized (monitor) {
+                                    block();
+                                }
+                            });
+            assumeTrue(!probe.isEmpty(), "monitors don't pin on this runtime");
+            List<RecordedEvent> events = record(executor, task);
+            assertTrue(events.isEmpty(), "carrier pinned: " + events);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private List<RecordedEvent> record(ExecutorService executor, Task task) throws Exception {
+        Path file = Files.createTempFile("pinning", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            recording.start();
+            executor.submit(
+                            () -> {
+                                task.run();
+                                return null;
+                            })
+                    .get();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            // available since java 21
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static void block() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T mock(Class<T> type, Function<Method, Object> answer) {
+        return (T)
+                Proxy.newProxyInstance(
+                        type.getClassLoader(),
+                        new Class<?>[] {type},
+                        (proxy, method, args) -> answer.apply(method));
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static class NullOutputStream extends ServletOutputStream {
+
+        @Override
+        public void write(int b) throws IOException {}
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {}
+    }
+}
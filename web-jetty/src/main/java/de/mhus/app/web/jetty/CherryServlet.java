@@ -16,7 +16,10 @@
 package de.mhus.app.web.jetty;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -27,11 +30,12 @@ import org.osgi.service.component.annotations.Component;
 
 import de.mhus.app.web.api.InternalCallContext;
 import de.mhus.app.web.core.CherryApiImpl;
+import de.mhus.app.web.core.CherryCallContext;
 import de.mhus.lib.core.logging.MLogUtil;
 
 @Component(
         service = Servlet.class,
-        property = "alias=/*",
+        property = {"alias=/*", "osgi.http.whiteboard.servlet.asyncSupported=true"},
         name = "CherryServlet",
         servicefactory = true)
 public class CherryServlet extends HttpServlet {
@@ -42,13 +46,41 @@ public class CherryServlet extends HttpServlet {
     protected void service(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
 
+        CherryApiImpl api = CherryApiImpl.instance();
+        ExecutorService executor = api.getRequestExecutor();
+        if (executor != null && request.isAsyncSupported() && !request.isAsyncStarted()) {
+            AsyncContext async = request.startAsync(request, response);
+            async.setTimeout(0); // same as a blocking dispatch
+            try {
+                executor.execute(
+                        () -> {
+                            InternalCallContext call = null;
+                            try {
+                                call = dispatch(api, request, response);
+                            } finally {
+                                if (call == null || !call.isAsync()) async.complete();
+                            }
+                        });
+                return;
+            } catch (RejectedExecutionException e) {
+                MLogUtil.log().d("executor rejected request", e);
+                sendInternalError(response, e);
+                async.complete();
+                return;
+            }
+        }
+        dispatch(api, request, response);
+    }
+
+    private InternalCallContext dispatch(
+            CherryApiImpl api, HttpServletRequest request, HttpServletResponse response) {
         InternalCallContext call = null;
-        CherryApiImpl.instance().beginRequest(this, request, response);
+        api.beginRequest(this, request, response);
         try {
-            call = CherryApiImpl.instance().createCallContext(this, request, response);
+            call = api.createCallContext(this, request, response);
             if (call == null) {
                 sendNotFoundError(response);
-                return;
+                return null;
             }
 
             call.getVirtualHost().doRequest(call);
@@ -57,8 +89,16 @@ public class CherryServlet extends HttpServlet {
             MLogUtil.log().w(t);
             sendInternalError(response, t);
         } finally {
-            CherryApiImpl.instance().endRequest(this, request, response);
+            // in async mode the request is ended by the thread completing the call
+            if (!(call instanceof CherryCallContext)
+                    || !((CherryCallContext) call)
+                            .dispatchFinished(
+                                    () -> api.suspendRequest(this, request, response),
+                                    () -> api.resumeRequest(this, request, response),
+                                    () -> api.endRequest(this, request, response)))
+                api.endRequest(this, request, response);
         }
+        return call;
     }
 
     private void sendNotFoundError(HttpServletResponse response) {
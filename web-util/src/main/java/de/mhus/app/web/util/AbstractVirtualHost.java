@@ -21,6 +21,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletionStage;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -30,8 +31,11 @@ import org.osgi.framework.Bundle;
 import de.mhus.app.web.api.CallContext;
 import de.mhus.app.web.api.InternalCallContext;
 import de.mhus.app.web.api.VirtualHost;
+import de.mhus.app.web.api.VirtualHostStatistics;
 import de.mhus.app.web.api.WebArea;
 import de.mhus.app.web.api.WebFilter;
+import de.mhus.app.web.api.util.AdmissionControl;
+import de.mhus.lib.basics.RC;
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.MCollection;
 import de.mhus.lib.core.MFile;
@@ -55,7 +59,7 @@ public abstract class AbstractVirtualHost extends MLog implements VirtualHost {
     private Bundle bundle;
     protected LinkedList<WebFilter> filters = new LinkedList<>();
     protected LinkedList<WebFilter> filtersReverse = new LinkedList<>();
-    protected LinkedList<ActiveAreaContainer> areas = new LinkedList<>();
+    protected AreaRouter areas = new AreaRouter();
     protected String defaultMimeType = MFile.DEFAULT_MIME;
     protected String charsetEncoding = MString.CHARSET_UTF_8;
 
@@ -63,6 +67,8 @@ public abstract class AbstractVirtualHost extends MLog implements VirtualHost {
     private String firstAlias; // use as name default
     private String profile;
     private UUID instanceId = UUID.randomUUID();
+    private VirtualHostStatistics statistics = new VirtualHostStatistics();
+    private volatile AdmissionControl admissionControl;
 
     @Override
     public void sendError(CallContext context, int sc, Throwable t) {
@@ -105,14 +111,54 @@ public abstract class AbstractVirtualHost extends MLog implements VirtualHost {
      */
     @Override
     public void doRequest(InternalCallContext call) {
+        long start = System.nanoTime();
+        String method = call.getHttpMethod();
+        boolean async = false;
+        AdmissionControl admission = admissionControl;
+        boolean admitted = false;
+        long admittedAt = 0;
+        statistics.begin();
         try {
 
+            // concurrency limit
+            if (admission != null) {
+                if (!admission.acquire()) {
+                    sendOverloaded(call, admission);
+                    return;
+                }
+                admitted = true;
+                admittedAt = System.nanoTime();
+            }
+
             // execute filters
             if (!doFiltersBegin(call)) return;
 
-            if (doActiveAreas(call)) return;
+            if (doActiveAreas(call)) {
+                @SuppressWarnings("unchecked")
+                CompletionStage<Boolean> stage =
+                        (CompletionStage<Boolean>) call.getAttribute(AreaRouter.CALL_ASYNC_STAGE);
+                if (stage != null) {
+                    async = true;
+                    long since = admittedAt;
+                    // release the slot and statistics also if the stage never completes
+                    call.setAsyncAbortHandler(
+                            () -> doRequestEnd(call, method, start, admission, since));
+                    stage.whenComplete(
+                            (consumed, t) ->
+                                    call.completeAsync(
+                                            () ->
+                                                    doAsyncRequestEnd(
+                                                            call,
+                                                            consumed,
+                                                            t,
+                                                            method,
+                                                            start,
+                                                            admission,
+                                                            since)));
+                }
+                return;
+            }
 
-            String method = call.getHttpMethod();
             if (traceAccess)
                 log().d(
                                 "access",
@@ -152,16 +198,64 @@ public abstract class AbstractVirtualHost extends MLog implements VirtualHost {
         } catch (Throwable t) {
             sendError(call, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, t);
         } finally {
-            try {
-                if (call != null) {
-                    doFiltersEnd(call);
-                }
-            } catch (Throwable t) {
-                MLogUtil.log().w(t);
-            }
+            if (!async)
+                doRequestEnd(call, method, start, admitted ? admission : null, admittedAt);
+        }
+    }
+
+    /**
+     * Reject a request because the concurrency limit is reached.
+     *
+     * @param call
+     * @param admission
+     */
+    protected void sendOverloaded(InternalCallContext call, AdmissionControl admission) {
+        if (traceAccess) log().d(name, "overloaded", admission, call.getHttpPath());
+        HttpServletResponse res = call.getHttpResponse();
+        if (res.isCommitted()) return;
+        res.setHeader("Retry-After", String.valueOf(admission.getRetryAfter()));
+        try {
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        } catch (IOException e) {
+            log().t(e);
         }
     }
 
+    private void doAsyncRequestEnd(
+            InternalCallContext call,
+            Boolean consumed,
+            Throwable t,
+            String method,
+            long start,
+            AdmissionControl admission,
+            long admittedAt) {
+        if (t != null) sendError(call, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, t);
+        else if (consumed == null || !consumed)
+            sendError(call, HttpServletResponse.SC_NOT_FOUND, null);
+        doRequestEnd(call, method, start, admission, admittedAt);
+    }
+
+    private void doRequestEnd(
+            InternalCallContext call,
+            String method,
+            long start,
+            AdmissionControl admission,
+            long admittedAt) {
+        try {
+            doFiltersEnd(call);
+        } catch (Throwable t) {
+            MLogUtil.log().w(t);
+        }
+        long now = System.nanoTime();
+        int status = call.getHttpResponse().getStatus();
+        if (admission != null)
+            admission.release(
+                    now - admittedAt,
+                    status == HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                            || status == HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        statistics.end(method, status, now - start);
+    }
+
     protected void doConnectRequest(CallContext context) throws Exception {}
 
     /**
@@ -274,14 +368,9 @@ public abstract class AbstractVirtualHost extends MLog implements VirtualHost {
     }
 
     public boolean doActiveAreas(InternalCallContext call) throws MException {
-        if (areas == null || areas.size() == 0) return false;
-        String path = call.getHttpPath();
+        if (areas == null || areas.isEmpty()) return false;
         // do not synchronize - it's to slow
-        for (ActiveAreaContainer area : areas)
-            if (path.startsWith(area.alias)) {
-                if (area.area.doRequest(instanceId, call)) return true;
-            }
-        return false;
+        return areas.route(instanceId, call);
     }
 
     public void addFilter(WebFilter filter) {
@@ -292,17 +381,7 @@ public abstract class AbstractVirtualHost extends MLog implements VirtualHost {
 
     public void addArea(String alias, WebArea area) {
         log().i("add area", alias, area.getClass().getCanonicalName());
-        areas.add(new ActiveAreaContainer(alias, area));
-    }
-
-    protected class ActiveAreaContainer {
-        public ActiveAreaContainer(String alias, WebArea area) {
-            this.area = area;
-            this.alias = alias;
-        }
-
-        String alias;
-        WebArea area;
+        areas.add(alias, area);
     }
 
     @Override
@@ -358,4 +437,47 @@ public abstract class AbstractVirtualHost extends MLog implements VirtualHost {
     public boolean isTraceErrors() {
         return traceErrors;
     }
+
+    @Override
+    public VirtualHostStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    @Override
+    public VirtualHost createSuccessor() throws MException {
+        AbstractVirtualHost successor;
+        try {
+            successor = getClass().getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            throw new MException(RC.INTERNAL_ERROR, "can't create successor", name, t);
+        }
+        initSuccessor(successor);
+        return successor;
+    }
+
+    /**
+     * Copy the settings not loaded by start() to the successor. Overwrite to copy more settings.
+     *
+     * @param successor The new instance
+     * @throws MException
+     */
+    protected void initSuccessor(AbstractVirtualHost successor) throws MException {
+        successor.externalAliases = externalAliases;
+        successor.profile = profile;
+        successor.bundle = bundle;
+    }
+
+    /**
+     * Set the concurrency limit.
+     *
+     * @param admissionControl The admission control or null for no limit
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
 }
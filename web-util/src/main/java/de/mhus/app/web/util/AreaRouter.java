@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import de.mhus.app.web.api.AsyncWebArea;
+import de.mhus.app.web.api.InternalCallContext;
+import de.mhus.app.web.api.WebArea;
+import de.mhus.lib.errors.MException;
+
+/**
+ * Radix tree of the active areas. An area path is a prefix of the request path, e.g. '/api/v1'.
+ * Path segments like '{tenant}' are parameters and match one segment of the request path, the
+ * value is set as call attribute CALL_PARAMETER_PREFIX + name.
+ *
+ * <p>Areas are tried in this order until one consumes the call:
+ *
+ * <ol>
+ *   <li>The longest matching part of the request path first, shorter prefixes later
+ *   <li>On the same length a static path before a parameter
+ *   <li>Areas with the same path in order of registration
+ * </ol>
+ *
+ * The tree is not synchronized, add all areas before the virtual host is published.
+ */
+public class AreaRouter {
+
+    public static final String CALL_PARAMETER_PREFIX = "__area_";
+    /** Call attribute holding the stage of an async area. */
+    public static final String CALL_ASYNC_STAGE = "__cherry_async_stage";
+
+    private static final Comparator<Match> LONGEST_FIRST = (a, b) -> b.end - a.end;
+
+    private final Node root = new Node("");
+    private int maxParameters;
+    private int size;
+
+    public void add(String path, WebArea area) {
+        LinkedList<String> names = new LinkedList<>();
+        Node node = root;
+        int pos = 0;
+        while (pos < path.length()) {
+            int p = path.indexOf('{', pos);
+            int e = p < 0 ? -1 : path.indexOf('}', p);
+            if (p < 0 || e < 0) {
+                node = node.addStatic(path.substring(pos));
+                break;
+            }
+            if (p > pos) node = node.addStatic(path.substring(pos, p));
+            names.add(path.substring(p + 1, e));
+            node = node.addParameter();
+            pos = e + 1;
+        }
+        node.add(new Container(path, area, names.toArray(new String[names.size()])));
+        maxParameters = Math.max(maxParameters, names.size());
+        size++;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return all area paths in order of the tree.
+     *
+     * @return List of paths
+     */
+    public List<String> getPaths() {
+        ArrayList<String> out = new ArrayList<>();
+        root.collect(out);
+        return out;
+    }
+
+    /**
+     * Execute the matching areas until one consumes the call.
+     *
+     * @param instanceId Instance of the virtual host
+     * @param call The call
+     * @return true if consumed
+     * @throws MException
+     */
+    public boolean route(UUID instanceId, InternalCallContext call) throws MException {
+        if (size == 0) return false;
+        String path = call.getHttpPath();
+        if (path == null) return false;
+        // without parameters the matches are nested, they are found in order on the way back
+        if (maxParameters == 0) return route(root, path, 0, instanceId, call);
+        ArrayList<Match> matches = collect(root, path, 0, null, 0, null);
+        if (matches == null) return false;
+        // stable, on the same length in the order found: static before parameter
+        matches.sort(LONGEST_FIRST);
+        for (Match match : matches)
+            if (execute(match.node, path, match.bounds, instanceId, call)) return true;
+        return false;
+    }
+
+    private boolean route(
+            Node node, String path, int pos, UUID instanceId, InternalCallContext call)
+            throws MException {
+        if (pos < path.length()) {
+            Node child = node.find(path.charAt(pos));
+            if (child != null
+                    && path.startsWith(child.prefix, pos)
+                    && route(child, path, pos + child.prefix.length(), instanceId, call))
+                return true;
+        }
+        return node.areas != null && execute(node, path, null, instanceId, call);
+    }
+
+    /**
+     * Collect the nodes with areas matching the path. The bounds of the parameters are allocated
+     * if a parameter node is entered.
+     */
+    private ArrayList<Match> collect(
+            Node node, String path, int pos, int[] bounds, int depth, ArrayList<Match> matches) {
+        if (node.areas != null) {
+            if (matches == null) matches = new ArrayList<>(4);
+            matches.add(
+                    new Match(node, pos, depth == 0 ? null : Arrays.copyOf(bounds, depth * 2)));
+        }
+        if (pos >= path.length()) return matches;
+        Node child = node.find(path.charAt(pos));
+        if (child != null && path.startsWith(child.prefix, pos))
+            matches =
+                    collect(child, path, pos + child.prefix.length(), bounds, depth, matches);
+        if (node.parameter != null) {
+            int end = path.indexOf('/', pos);
+            if (end < 0) end = path.length();
+            if (end > pos) {
+                if (bounds == null) bounds = new int[maxParameters * 2];
+                bounds[depth * 2] = pos;
+                bounds[depth * 2 + 1] = end;
+                matches = collect(node.parameter, path, end, bounds, depth + 1, matches);
+            }
+        }
+        return matches;
+    }
+
+    private boolean execute(
+            Node node, String path, int[] bounds, UUID instanceId, InternalCallContext call)
+            throws MException {
+        for (Container container : node.areas) {
+            for (int i = 0; i < container.parameters.length; i++)
+                call.setAttribute(
+                        CALL_PARAMETER_PREFIX + container.parameters[i],
+                        path.substring(bounds[i * 2], bounds[i * 2 + 1]));
+            if (container.area instanceof AsyncWebArea && call.startAsync()) {
+                // the call is consumed, the result is handled by the virtual host
+                CompletionStage<Boolean> stage = null;
+                try {
+                    stage = ((AsyncWebArea) container.area).doRequestAsync(instanceId, call);
+                } catch (Throwable t) {
+                    CompletableFuture<Boolean> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(t);
+                    stage = failed;
+                }
+                if (stage == null) stage = CompletableFuture.completedFuture(false);
+                call.setAttribute(CALL_ASYNC_STAGE, stage);
+                return true;
+            }
+            if (container.area.doRequest(instanceId, call)) return true;
+        }
+        return false;
+    }
+
+    private static class Match {
+
+        private final Node node;
+        private final int end;
+        private final int[] bounds;
+
+        private Match(Node node, int end, int[] bounds) {
+            this.node = node;
+            this.end = end;
+            this.bounds = bounds;
+        }
+    }
+
+    private static class Container {
+
+        private final String path;
+        private final WebArea area;
+        private final String[] parameters;
+
+        private Container(String path, WebArea area, String[] parameters) {
+            this.path = path;
+            this.area = area;
+            this.parameters = parameters;
+        }
+    }
+
+    private static class Node {
+
+        private String prefix;
+        private Node[] children;
+        private Node parameter;
+        private Container[] areas;
+
+        private Node(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private Node find(char c) {
+            if (children == null) return null;
+            for (Node child : children) if (child.prefix.charAt(0) == c) return child;
+            return null;
+        }
+
+        private Node addStatic(String s) {
+            if (s.length() == 0) return this;
+            Node child = find(s.charAt(0));
+            if (child == null) {
+                child = new Node(s);
+                addChild(child);
+                return child;
+            }
+            int common = 0;
+            int max = Math.min(s.length(), child.prefix.length());
+            while (common < max && s.charAt(common) == child.prefix.charAt(common)) common++;
+            if (common < child.prefix.length()) {
+                // split the edge
+                Node middle = new Node(child.prefix.substring(0, common));
+                child.prefix = child.prefix.substring(common);
+                middle.children = new Node[] {child};
+                for (int i = 0; i < children.length; i++)
+                    if (children[i] == child) children[i] = middle;
+                child = middle;
+            }
+            return child.addStatic(s.substring(common));
+        }
+
+        private Node addParameter() {
+            if (parameter == null) parameter = new Node("{}");
+            return parameter;
+        }
+
+        private void addChild(Node child) {
+            if (children == null) {
+                children = new Node[] {child};
+                return;
+            }
+            Node[] n = new Node[children.length + 1];
+            System.arraycopy(children, 0, n, 0, children.length);
+            n[children.length] = child;
+            children = n;
+        }
+
+        private void add(Container container) {
+            if (areas == null) {
+                areas = new Container[] {container};
+                return;
+            }
+            Container[] n = new Container[areas.length + 1];
+            System.arraycopy(areas, 0, n, 0, areas.length);
+            n[areas.length] = container;
+            areas = n;
+        }
+
+        private void collect(List<String> out) {
+            if (areas != null) for (Container container : areas) out.add(container.path);
+            if (children != null) for (Node child : children) child.collect(out);
+            if (parameter != null) parameter.collect(out);
+        }
+    }
+}
@@ -17,13 +17,17 @@ package de.mhus.app.web.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import javax.servlet.http.HttpSession;
 
 import de.mhus.app.web.api.CallContext;
 import de.mhus.app.web.api.CherryApi;
 import de.mhus.app.web.api.InternalCallContext;
 import de.mhus.app.web.api.VirtualHost;
+import de.mhus.app.web.api.WebSession;
 import de.mhus.app.web.util.webspace.CallConfigProvider;
 import de.mhus.lib.core.IReadProperties;
 import de.mhus.lib.core.M;
@@ -34,6 +38,7 @@ import de.mhus.lib.core.MString;
 import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.lib.core.crypt.MRandom;
 import de.mhus.lib.core.logging.MLogUtil;
+import de.mhus.osgi.api.MOsgi;
 
 public class CherryWebUtil {
 
@@ -56,23 +61,15 @@ public class CherryWebUtil {
     }
 
     public static String createCsrfToken(CallContext context) {
-        synchronized (context) {
-            @SuppressWarnings("unchecked")
-            LinkedList<String> tokens =
-                    (LinkedList<String>) context.getSession().get("_csrftokens");
-            if (tokens == null) {
-                tokens = new LinkedList<String>();
-                context.getSession().put("_csrftokens", tokens);
-            }
-            StringBuilder token = new StringBuilder();
-            MRandom rnd = M.l(MRandom.class);
-            for (int i = 0; i < 40; i++) token.append(rnd.getChar());
-            token.append('-').append(System.currentTimeMillis());
-            String tokenStr = token.toString();
-            tokens.add(tokenStr);
-            while (tokens.size() > 10) tokens.removeFirst();
-            return tokenStr;
-        }
+        Deque<String> tokens = getCsrfTokens(context, true);
+        StringBuilder token = new StringBuilder();
+        MRandom rnd = M.l(MRandom.class);
+        for (int i = 0; i < 40; i++) token.append(rnd.getChar());
+        token.append('-').append(System.currentTimeMillis());
+        String tokenStr = token.toString();
+        tokens.add(tokenStr);
+        while (tokens.size() > 10) tokens.pollFirst();
+        return tokenStr;
     }
 
     public static boolean isCsrfToken(CallContext context, String token) {
@@ -83,13 +80,35 @@ public class CherryWebUtil {
         if (time <= 0) return false;
         if (MPeriod.isTimeOut(time, CFG_CSRF_TIMEOUT.value())) return false;
 
-        synchronized (context) {
-            @SuppressWarnings("unchecked")
-            LinkedList<String> tokens =
-                    (LinkedList<String>) context.getSession().get("_csrftokens");
-            if (tokens == null) return false;
-            return tokens.contains(token);
-        }
+        Deque<String> tokens = getCsrfTokens(context, false);
+        if (tokens == null) return false;
+        return tokens.contains(token);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Deque<String> getCsrfTokens(CallContext context, boolean create) {
+        WebSession session = context.getSession();
+        Object tokens = session.get("_csrftokens");
+        if (tokens instanceof ConcurrentLinkedDeque) return (Deque<String>) tokens;
+        if (!create) return null;
+        // lock free, a token created at the same time by a parallel request could be lost
+        session.put("_csrftokens", new ConcurrentLinkedDeque<String>());
+        return (Deque<String>) session.get("_csrftokens");
+    }
+
+    /**
+     * Remove the cached aaa subject of the current http session. Call it before the
+     * authentication of the session changes.
+     *
+     * @param context
+     */
+    public static void invalidateSubject(CallContext context) {
+        HttpSession session = context.getHttpRequest().getSession(false);
+        if (session == null) return;
+        String accessSessionId = (String) session.getAttribute(CherryApi.SESSION_ACCESS_ID);
+        if (accessSessionId == null) return;
+        CherryApi api = MOsgi.getService(CherryApi.class);
+        if (api != null) api.invalidateSubject(accessSessionId);
     }
 
     public static IReadProperties findConfig(InternalCallContext call) {
@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.mhus.lib.core.MLog;
+
+/**
+ * In memory index of a document tree with type, size and modification time of each entry. Files
+ * below the root are answered from the index, other files and all files if the index is not
+ * built are answered by the file system.
+ *
+ * <p>The index is kept current by update() with the changes reported by the file watcher, it can
+ * be behind the file system for the debounce time of the watcher. If the tree has more than
+ * maxEntries entries the index is disabled.
+ */
+public class DocumentIndex extends MLog {
+
+    private final File root;
+    private final String rootPath;
+    private final int threads;
+    private final int maxEntries;
+    private volatile ConcurrentHashMap<String, Entry> entries;
+    private volatile boolean disabled;
+
+    public DocumentIndex(File root, int threads, int maxEntries) {
+        this.root = root.getAbsoluteFile();
+        this.rootPath = this.root.getPath();
+        this.threads = Math.max(1, threads);
+        this.maxEntries = maxEntries;
+    }
+
+    /** Scan the tree in parallel and replace the index. */
+    public void build() {
+        if (disabled) return;
+        long start = System.currentTimeMillis();
+        ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+        AtomicInteger count = new AtomicInteger();
+        Entry rootEntry = stat(root.toPath());
+        if (rootEntry == null || !rootEntry.directory) {
+            log().w("document root is not a directory, index disabled", root);
+            entries = null;
+            return;
+        }
+        map.put("", rootEntry);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new Scan(map, count, root.toPath(), ""));
+        } finally {
+            pool.shutdown();
+        }
+        if (count.get() > maxEntries) {
+            log().w("too many documents, index disabled", root, maxEntries);
+            entries = null;
+            return;
+        }
+        if (disabled) return;
+        entries = map;
+        log().i("document index built", root, map.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Update the index for changed files. Deleted directories are removed with the subtree, new
+     * directories are scanned. If the root itself is changed the index is rebuilt.
+     *
+     * @param files Changed, created or deleted files
+     */
+    public void update(Set<File> files) {
+        ConcurrentHashMap<String, Entry> map = entries;
+        if (map == null) return;
+        for (File file : files) {
+            String key = getKey(file);
+            if (key == null) continue;
+            if (key.isEmpty()) {
+                build();
+                return;
+            }
+            Entry entry = stat(file.toPath());
+            if (entry == null) {
+                Entry old = map.remove(key);
+                if (old != null && old.directory) {
+                    String prefix = key + File.separatorChar;
+                    map.keySet().removeIf(k -> k.startsWith(prefix));
+                }
+                continue;
+            }
+            addParents(map, key);
+            Entry old = map.put(key, entry);
+            if (entry.directory && (old == null || !old.directory)) {
+                AtomicInteger count = new AtomicInteger(map.size());
+                new Scan(map, count, file.toPath(), key).invoke();
+                if (count.get() > maxEntries) {
+                    log().w("too many documents, index disabled", root, maxEntries);
+                    entries = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the current entry of the file from the file system. Changes are reported by the watcher
+     * after the debounce time, use the returned entry for the size, modification time and tag sent
+     * with the content. The index is changed by the watcher only.
+     *
+     * @param file The file
+     * @return The entry or null if the file does not exist or is a directory
+     */
+    public Entry validate(File file) {
+        Entry current = stat(file.toPath());
+        return current == null || current.directory ? null : current;
+    }
+
+    /**
+     * Return the indexed entry of the file.
+     *
+     * @param file The file
+     * @return The entry, null if the file does not exist or is not indexed
+     */
+    public Entry get(File file) {
+        ConcurrentHashMap<String, Entry> map = entries;
+        if (map == null) return null;
+        String key = getKey(file);
+        return key == null ? null : map.get(key);
+    }
+
+    public boolean exists(File file) {
+        ConcurrentHashMap<String, Entry> map = entries;
+        String key = map == null ? null : getKey(file);
+        if (key == null) return file.exists();
+        return map.containsKey(key);
+    }
+
+    public boolean isFile(File file) {
+        ConcurrentHashMap<String, Entry> map = entries;
+        String key = map == null ? null : getKey(file);
+        if (key == null) return file.isFile();
+        Entry entry = map.get(key);
+        return entry != null && !entry.directory;
+    }
+
+    public boolean isDirectory(File file) {
+        ConcurrentHashMap<String, Entry> map = entries;
+        String key = map == null ? null : getKey(file);
+        if (key == null) return file.isDirectory();
+        Entry entry = map.get(key);
+        return entry != null && entry.directory;
+    }
+
+    public long lastModified(File file) {
+        ConcurrentHashMap<String, Entry> map = entries;
+        String key = map == null ? null : getKey(file);
+        if (key == null) return file.lastModified();
+        Entry entry = map.get(key);
+        return entry == null ? 0 : entry.modified;
+    }
+
+    public long length(File file) {
+        ConcurrentHashMap<String, Entry> map = entries;
+        String key = map == null ? null : getKey(file);
+        if (key == null) return file.length();
+        Entry entry = map.get(key);
+        return entry == null ? 0 : entry.size;
+    }
+
+    /**
+     * Return the number of indexed entries.
+     *
+     * @return Entries or -1 if the index is disabled
+     */
+    public int size() {
+        ConcurrentHashMap<String, Entry> map = entries;
+        return map == null ? -1 : map.size();
+    }
+
+    /** Disable the index permanently, all files are answered by the file system. */
+    public void disable() {
+        disabled = true;
+        entries = null;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Return the key of the file relative to the root or null if the file is not below the root.
+     * Paths with relative or hidden segments are left to the file system.
+     */
+    private String getKey(File file) {
+        String path = file.getPath();
+        if (!file.isAbsolute()) path = file.getAbsolutePath();
+        if (!path.startsWith(rootPath)) return null;
+        if (path.length() == rootPath.length()) return "";
+        if (path.charAt(rootPath.length()) != File.separatorChar) return null;
+        String key = path.substring(rootPath.length() + 1);
+        if (key.startsWith(".") || key.contains(File.separator + ".")) return null;
+        return key;
+    }
+
+    private void addParents(ConcurrentHashMap<String, Entry> map, String key) {
+        int pos = key.lastIndexOf(File.separatorChar);
+        while (pos > 0) {
+            String parent = key.substring(0, pos);
+            if (map.containsKey(parent)) return;
+            Entry entry = stat(new File(root, parent).toPath());
+            if (entry != null) map.put(parent, entry);
+            pos = parent.lastIndexOf(File.separatorChar);
+        }
+    }
+
+    private static Entry stat(Path path) {
+        try {
+            BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Entry(attr.isDirectory(), attr.size(), attr.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private class Scan extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final ConcurrentHashMap<String, Entry> map;
+        private final AtomicInteger count;
+        private final Path dir;
+        private final String key;
+
+        private Scan(
+                ConcurrentHashMap<String, Entry> map, AtomicInteger count, Path dir, String key) {
+            this.map = map;
+            this.count = count;
+            this.dir = dir;
+            this.key = key;
+        }
+
+        @Override
+        protected void compute() {
+            List<Scan> subDirs = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    if (count.incrementAndGet() > maxEntries) return;
+                    Entry entry = stat(path);
+                    if (entry == null) continue;
+                    String name = path.getFileName().toString();
+                    String child = key.isEmpty() ? name : key + File.separatorChar + name;
+                    map.put(child, entry);
+                    if (entry.directory) subDirs.add(new Scan(map, count, path, child));
+                }
+            } catch (IOException e) {
+                log().d("scan failed", dir, e);
+            }
+            invokeAll(subDirs);
+        }
+    }
+
+    public static class Entry {
+        private final boolean directory;
+        private final long size;
+        private final long modified;
+
+        private Entry(boolean directory, long size, long modified) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import de.mhus.app.web.api.CallContext;
+import de.mhus.app.web.api.ChannelOutput;
+
+/**
+ * Send static files. If the output supports it the file is sent without copying it through the
+ * heap, otherwise it is copied with pooled buffers.
+ */
+public class StaticContent {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+    /** Smaller files are copied, mapping is more expensive than the copy. */
+    public static final long MIN_CHANNEL_SIZE = 64 * 1024;
+    /** Requests with more ranges get the complete content. */
+    public static final int MAX_RANGES = 16;
+
+    public static final int SC_PARTIAL_CONTENT = 206;
+    public static final int SC_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final ArrayBlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(64);
+
+    private StaticContent() {}
+
+    /**
+     * Create an entity tag from modification time and size of the files. Use a weak tag if the
+     * content is composed of more than one file.
+     *
+     * @param weak Create a weak tag
+     * @param files The files of the content
+     * @return The tag including quotes
+     */
+    public static String createETag(boolean weak, File... files) {
+        StringBuilder out = new StringBuilder(weak ? "W/\"" : "\"");
+        for (int i = 0; i < files.length; i++) {
+            if (i > 0) out.append('-');
+            out.append(Long.toHexString(files[i].lastModified()))
+                    .append('-')
+                    .append(Long.toHexString(files[i].length()));
+        }
+        return out.append('"').toString();
+    }
+
+    /**
+     * Create an entity tag from modification time and size of one file.
+     *
+     * @param weak Create a weak tag
+     * @param lastModified Modification time of the file
+     * @param length Size of the file
+     * @return The tag including quotes
+     */
+    public static String createETag(boolean weak, long lastModified, long length) {
+        return (weak ? "W/\"" : "\"")
+                + Long.toHexString(lastModified)
+                + '-'
+                + Long.toHexString(length)
+                + '"';
+    }
+
+    /**
+     * Check the conditional headers If-None-Match and If-Modified-Since of a GET or HEAD request.
+     * If-Modified-Since is ignored if If-None-Match is set.
+     *
+     * @param req The request
+     * @param etag Current tag of the content or null
+     * @param lastModified Current modification time or 0
+     * @return true if the client has the current content
+     */
+    public static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+        String method = req.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) return false;
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) return etag != null && matchesETag(ifNoneMatch, etag);
+        if (lastModified <= 0) return false;
+        try {
+            long since = req.getDateHeader("If-Modified-Since");
+            // http dates have a resolution of seconds
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Weak comparison of the tag with a list of tags like in If-None-Match.
+     *
+     * @param header Comma separated tags or *
+     * @param etag The tag
+     * @return true if one of the tags matches
+     */
+    public static boolean matchesETag(String header, String etag) {
+        String opaque = stripWeak(etag);
+        for (String part : header.split(",")) {
+            part = part.trim();
+            if (part.equals("*") || stripWeak(part).equals(opaque)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send the ranges of the Range header with 206 or 416 if the ranges are not satisfiable. Call
+     * it after the headers of the complete file are prepared. Nothing is sent if the request has no
+     * valid Range header or If-Range does not match.
+     *
+     * @param context The call
+     * @param file The file
+     * @param etag Current tag of the file or null
+     * @return true if the response is sent
+     * @throws IOException
+     */
+    public static boolean sendRanges(CallContext context, File file, String etag)
+            throws IOException {
+        return sendRanges(context, file, etag, file.lastModified(), file.length());
+    }
+
+    /**
+     * Send the ranges of the Range header like sendRanges(CallContext, File, String) with the
+     * modification time and length already known by the caller.
+     *
+     * @param context The call
+     * @param file The file
+     * @param etag Current tag of the file or null
+     * @param lastModified Modification time of the file
+     * @param length Length of the file
+     * @return true if the response is sent
+     * @throws IOException
+     */
+    public static boolean sendRanges(
+            CallContext context, File file, String etag, long lastModified, long length)
+            throws IOException {
+        HttpServletRequest req = context.getHttpRequest();
+        String header = req.getHeader("Range");
+        if (header == null || !"GET".equals(req.getMethod())) return false;
+        if (!isIfRangeValid(req, etag, lastModified)) return false;
+        List<long[]> ranges = parseRanges(header, length);
+        if (ranges == null) return false;
+
+        HttpServletResponse res = context.getHttpResponse();
+        if (ranges.isEmpty()) {
+            res.setStatus(SC_RANGE_NOT_SATISFIABLE);
+            res.setHeader("Content-Range", "bytes */" + length);
+            res.setContentLengthLong(0);
+            return true;
+        }
+        OutputStream os = context.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            res.setStatus(SC_PARTIAL_CONTENT);
+            if (ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                res.setHeader("Content-Range", toContentRange(range, length));
+                res.setContentLengthLong(range[1] - range[0] + 1);
+                send(os, channel, range[0], range[1] - range[0] + 1);
+                return true;
+            }
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            String contentType = res.getContentType();
+            byte[][] parts = new byte[ranges.size()][];
+            byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            long total = end.length;
+            for (int i = 0; i < parts.length; i++) {
+                long[] range = ranges.get(i);
+                String part = "\r\n--" + boundary + "\r\n";
+                if (contentType != null) part = part + "Content-Type: " + contentType + "\r\n";
+                part = part + "Content-Range: " + toContentRange(range, length) + "\r\n\r\n";
+                parts[i] = part.getBytes(StandardCharsets.ISO_8859_1);
+                total += parts[i].length + range[1] - range[0] + 1;
+            }
+            res.setContentType("multipart/byteranges; boundary=" + boundary);
+            res.setContentLengthLong(total);
+            for (int i = 0; i < parts.length; i++) {
+                long[] range = ranges.get(i);
+                os.write(parts[i]);
+                copy(os, channel, range[0], range[1] - range[0] + 1);
+            }
+            os.write(end);
+        }
+        return true;
+    }
+
+    /**
+     * Parse a Range header. Overlapping and adjacent ranges are merged.
+     *
+     * @param header The header value
+     * @param length Length of the content
+     * @return Ranges with first and last position, empty if not satisfiable or null if the header
+     *     is invalid and must be ignored
+     */
+    public static List<long[]> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) return null;
+        ArrayList<long[]> ranges = new ArrayList<>();
+        for (String part : header.substring(6).split(",")) {
+            part = part.trim();
+            int dash = part.indexOf('-');
+            if (dash < 0) return null;
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // suffix: the last n bytes
+                    long suffix = Long.parseLong(part.substring(1));
+                    if (suffix <= 0) continue;
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(part.substring(0, dash));
+                    last = Long.MAX_VALUE;
+                    if (dash < part.length() - 1) {
+                        last = Long.parseLong(part.substring(dash + 1));
+                        if (last < first) return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first >= length) continue;
+            ranges.add(new long[] {first, last});
+        }
+        if (ranges.size() > MAX_RANGES) return null;
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        ArrayList<long[]> merged = new ArrayList<>(ranges.size());
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1)
+                previous[1] = Math.max(previous[1], range[1]);
+            else merged.add(range);
+        }
+        return merged;
+    }
+
+    private static boolean isIfRangeValid(HttpServletRequest req, String etag, long lastModified) {
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) return true;
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            // strong comparison
+            return etag != null && !etag.startsWith("W/") && etag.equals(ifRange.trim());
+        try {
+            long date = req.getDateHeader("If-Range");
+            return date >= 0 && lastModified / 1000 == date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String toContentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * Select the content coding of precompressed files. The highest quality accepted by the client
+     * wins, brotli on a tie.
+     *
+     * @param acceptEncoding The Accept-Encoding header or null
+     * @param br true if a brotli file exists
+     * @param gzip true if a gzip file exists
+     * @return "br", "gzip" or null for the original file
+     */
+    public static String selectEncoding(String acceptEncoding, boolean br, boolean gzip) {
+        if (acceptEncoding == null) return null;
+        double brQ = -1;
+        double gzipQ = -1;
+        double anyQ = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] values = part.split(";");
+            String coding = values[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < values.length; i++) {
+                String param = values[i].trim();
+                if (param.startsWith("q="))
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+            }
+            if (coding.equals("br")) brQ = q;
+            else if (coding.equals("gzip") || coding.equals("x-gzip")) gzipQ = q;
+            else if (coding.equals("*")) anyQ = q;
+        }
+        // not listed codings get the quality of *
+        if (brQ < 0) brQ = anyQ;
+        if (gzipQ < 0) gzipQ = anyQ;
+        if (!br) brQ = 0;
+        if (!gzip) gzipQ = 0;
+        if (brQ > 0 && brQ >= gzipQ) return "br";
+        if (gzipQ > 0) return "gzip";
+        return null;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Send the file as the complete remaining content of the response.
+     *
+     * @param os The output of the call
+     * @param file The file
+     * @throws IOException
+     */
+    public static void send(OutputStream os, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            send(os, channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * Send a region of the file as the complete remaining content of the response.
+     *
+     * @param os The output of the call
+     * @param channel The file
+     * @param position Start of the region
+     * @param count Length of the region
+     * @throws IOException
+     */
+    public static void send(OutputStream os, FileChannel channel, long position, long count)
+            throws IOException {
+        if (count >= MIN_CHANNEL_SIZE
+                && os instanceof ChannelOutput
+                && ((ChannelOutput) os).sendFile(channel, position, count)) return;
+        copy(os, channel, position, count);
+    }
+
+    /**
+     * Send the buffer as the complete remaining content of the response.
+     *
+     * @param os The output of the call
+     * @param content The content
+     * @throws IOException
+     */
+    public static void send(OutputStream os, ByteBuffer content) throws IOException {
+        if (os instanceof ChannelOutput && ((ChannelOutput) os).sendBuffer(content)) return;
+        copy(os, content);
+    }
+
+    /**
+     * Copy the remaining bytes of the buffer into the output, the output can be continued.
+     *
+     * @param os The output
+     * @param content The content
+     * @throws IOException
+     */
+    public static void copy(OutputStream os, ByteBuffer content) throws IOException {
+        if (content.hasArray()) {
+            os.write(
+                    content.array(),
+                    content.arrayOffset() + content.position(),
+                    content.remaining());
+            return;
+        }
+        byte[] buffer = buffers.poll();
+        if (buffer == null) buffer = new byte[BUFFER_SIZE];
+        try {
+            ByteBuffer bb = content.duplicate();
+            while (bb.hasRemaining()) {
+                int len = Math.min(buffer.length, bb.remaining());
+                bb.get(buffer, 0, len);
+                os.write(buffer, 0, len);
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Copy the file into the output, the output can be continued.
+     *
+     * @param os The output
+     * @param file The file
+     * @throws IOException
+     */
+    public static void copy(OutputStream os, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            copy(os, channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * Copy a region of the file into the output, the output can be continued.
+     *
+     * @param os The output
+     * @param channel The file
+     * @param position Start of the region
+     * @param count Length of the region
+     * @throws IOException
+     */
+    public static void copy(OutputStream os, FileChannel channel, long position, long count)
+            throws IOException {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) buffer = new byte[BUFFER_SIZE];
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            while (count > 0) {
+                bb.clear();
+                if (count < buffer.length) bb.limit((int) count);
+                int read = channel.read(bb, position);
+                if (read < 0) break;
+                os.write(buffer, 0, read);
+                position += read;
+                count -= read;
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package de.mhus.app.web.util.area;
 
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.mhus.app.web.api.CallContext;
 import de.mhus.app.web.api.VirtualHost;
@@ -32,7 +33,8 @@ public class AreaToMApi implements WebArea {
     private INode config;
     private String serviceName;
     private Class<?> serviceClass;
-    private WebArea webArea;
+    private volatile WebArea webArea;
+    private final ReentrantLock lock = new ReentrantLock();
     private VirtualHost vHost;
     private UUID instanceId = UUID.randomUUID();
 
@@ -45,21 +47,30 @@ public class AreaToMApi implements WebArea {
 
     @Override
     public boolean doRequest(UUID instance, CallContext call) throws MException {
-        check();
-        if (webArea == null) throw new NotFoundException("service not found", serviceName);
-        return webArea.doRequest(instanceId, call);
+        WebArea delegate = check();
+        if (delegate == null) throw new NotFoundException("service not found", serviceName);
+        return delegate.doRequest(instanceId, call);
     }
 
-    private synchronized void check() {
-        if (webArea == null) {
-            OsgiBundleClassLoader loader = new OsgiBundleClassLoader();
-            try {
+    private WebArea check() {
+        WebArea delegate = webArea;
+        if (delegate != null) return delegate;
+        lock.lock();
+        try {
+            if (webArea == null) {
+                OsgiBundleClassLoader loader = new OsgiBundleClassLoader();
                 serviceClass = loader.loadClass(serviceName);
-                webArea = (WebArea) M.l(serviceClass);
-                webArea.doInitialize(instanceId, vHost, config);
-            } catch (Throwable e) {
-                MLogUtil.log().e(serviceName, e);
+                delegate = (WebArea) M.l(serviceClass);
+                delegate.doInitialize(instanceId, vHost, config);
+                // publish after initialization
+                webArea = delegate;
             }
+            return webArea;
+        } catch (Throwable e) {
+            MLogUtil.log().e(serviceName, e);
+            return null;
+        } finally {
+            lock.unlock();
         }
     }
 }
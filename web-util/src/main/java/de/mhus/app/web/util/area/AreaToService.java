@@ -16,6 +16,7 @@
 package de.mhus.app.web.util.area;
 
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.mhus.app.web.api.CallContext;
 import de.mhus.app.web.api.VirtualHost;
@@ -30,7 +31,8 @@ public class AreaToService implements WebArea {
 
     private INode config;
     private String serviceName;
-    private WebArea webArea;
+    private volatile WebArea webArea;
+    private final ReentrantLock lock = new ReentrantLock();
     private VirtualHost vHost;
     private UUID instanceId = UUID.randomUUID();
 
@@ -43,19 +45,32 @@ public class AreaToService implements WebArea {
 
     @Override
     public boolean doRequest(UUID instance, CallContext call) throws MException {
-        check();
-        if (webArea == null) throw new NotFoundException("service not found", serviceName);
-        return webArea.doRequest(instanceId, call);
+        WebArea delegate = check();
+        if (delegate == null) throw new NotFoundException("service not found", serviceName);
+        return delegate.doRequest(instanceId, call);
     }
 
-    private synchronized void check() {
-        if (webArea == null) {
-            try {
-                webArea = MOsgi.getService(WebArea.class, "(name=" + serviceName + ")");
-                webArea.doInitialize(instanceId, vHost, config);
-            } catch (Throwable e) {
-                MLogUtil.log().e(serviceName, e);
+    private WebArea check() {
+        WebArea delegate = webArea;
+        if (delegate != null) return delegate;
+        lock.lock();
+        try {
+            if (webArea == null) {
+                delegate = findService();
+                delegate.doInitialize(instanceId, vHost, config);
+                // publish after initialization
+                webArea = delegate;
             }
+            return webArea;
+        } catch (Throwable e) {
+            MLogUtil.log().e(serviceName, e);
+            return null;
+        } finally {
+            lock.unlock();
         }
     }
+
+    protected WebArea findService() throws NotFoundException {
+        return MOsgi.getService(WebArea.class, "(name=" + serviceName + ")");
+    }
 }
@@ -161,10 +161,12 @@ public class AccessFilter extends MLog implements WebFilter {
         call.getSession().pub().remove(SESSION_USER_NAME);
         call.getSession().pub().remove(SESSION_USER_DISPLAY_NAME);
         call.getSession().pub().keys().removeIf(n -> n.startsWith(SESSION_GROUP_PREFIX));
+        CherryWebUtil.invalidateSubject(call);
         call.getHttpRequest().changeSessionId();
     }
 
     public static void doLogin(CallContext call, UserInformation user) {
+        CherryWebUtil.invalidateSubject(call);
         call.getSession().put(SESSION_USER_OBJECT, user);
         IProperties p = call.getSession().pub();
         p.setString(SESSION_USER_NAME, user.getUserName());
@@ -0,0 +1,450 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletResponse;
+
+import de.mhus.app.web.api.CallContext;
+import de.mhus.app.web.api.ChannelOutput;
+import de.mhus.app.web.api.InternalCallContext;
+import de.mhus.app.web.api.VirtualHost;
+import de.mhus.app.web.api.WebFilter;
+import de.mhus.app.web.api.util.BoundedCache;
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.node.INode;
+import de.mhus.lib.errors.MException;
+
+/**
+ * Compress responses with gzip or deflate. The output stream of the call is wrapped, the decision
+ * is made with the first written bytes: only complete (200) responses of compressible types
+ * without content encoding and not smaller than minSize are compressed.
+ *
+ * <p>Static files sent by the web space as a whole are compressed once, the result is cached by
+ * file, modification time and size.
+ */
+public class CompressionFilter extends MLog implements WebFilter {
+
+    public static String NAME = "compression_filter";
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private static final ArrayBlockingQueue<Deflater> gzipDeflaters = new ArrayBlockingQueue<>(64);
+    private static final ArrayBlockingQueue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(64);
+
+    @Override
+    public void doInitialize(UUID instance, VirtualHost vHost, INode config) throws MException {
+        vHost.getProperties().put(NAME + instance, new Config(config));
+    }
+
+    @Override
+    public boolean doFilterBegin(UUID instance, InternalCallContext call) throws MException {
+        Config config = (Config) call.getVirtualHost().getProperties().get(NAME + instance);
+        if (config == null) return true;
+        String method = call.getHttpMethod();
+        // the call returns the method in lower case
+        if (!"get".equalsIgnoreCase(method) && !"post".equalsIgnoreCase(method)) return true;
+        String encoding = selectEncoding(call.getHttpRequest().getHeader("Accept-Encoding"));
+        if (encoding == null) return true;
+        CompressionStream stream =
+                new CompressionStream(call, call.getOutputStream(), config, encoding);
+        call.setOutputStream(stream);
+        call.setAttribute(NAME + instance, stream);
+        return true;
+    }
+
+    @Override
+    public void doFilterEnd(UUID instance, InternalCallContext call) throws MException {
+        CompressionStream stream = (CompressionStream) call.getAttribute(NAME + instance);
+        if (stream == null) return;
+        try {
+            // the web space does not close the stream in every case
+            stream.finish();
+        } catch (IOException e) {
+            log().d("finish compression failed", e);
+        }
+    }
+
+    /**
+     * Select gzip or deflate, gzip on a tie.
+     *
+     * @param acceptEncoding The Accept-Encoding header
+     * @return "gzip", "deflate" or null
+     */
+    public static String selectEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        double gzipQ = -1;
+        double deflateQ = -1;
+        double anyQ = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] values = part.split(";");
+            String coding = values[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < values.length; i++) {
+                String param = values[i].trim();
+                if (param.startsWith("q="))
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) gzipQ = q;
+            else if (coding.equals("deflate")) deflateQ = q;
+            else if (coding.equals("*")) anyQ = q;
+        }
+        if (gzipQ < 0) gzipQ = anyQ;
+        if (deflateQ < 0) deflateQ = anyQ;
+        if (gzipQ > 0 && gzipQ >= deflateQ) return "gzip";
+        if (deflateQ > 0) return "deflate";
+        return null;
+    }
+
+    private static Deflater acquireDeflater(boolean gzip, int level) {
+        Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+        if (deflater == null) deflater = new Deflater(level, gzip);
+        else deflater.setLevel(level);
+        return deflater;
+    }
+
+    private static void releaseDeflater(boolean gzip, Deflater deflater) {
+        deflater.reset();
+        if (!(gzip ? gzipDeflaters : zlibDeflaters).offer(deflater)) deflater.end();
+    }
+
+    private static class Config {
+
+        private final int minSize;
+        private final int level;
+        private final String[] mimeTypes;
+        private final long maxCachedFileSize;
+        private final CompressedCache cache;
+
+        public Config(INode config) {
+            minSize = config.getInt("minSize", 1024);
+            level = config.getInt("level", Deflater.DEFAULT_COMPRESSION);
+            mimeTypes =
+                    config.getString(
+                                    "mimeTypes",
+                                    "text/*,application/javascript,application/json,"
+                                            + "application/xml,application/xhtml+xml,"
+                                            + "image/svg+xml")
+                            .split(",");
+            maxCachedFileSize = config.getLong("maxCachedFileSize", 1024 * 1024);
+            long cacheSize = config.getLong("cacheSize", 16 * 1024 * 1024);
+            cache = cacheSize > 0 ? new CompressedCache(cacheSize) : null;
+        }
+
+        public boolean isCompressible(String contentType) {
+            if (contentType == null) return false;
+            int pos = contentType.indexOf(';');
+            String type = (pos < 0 ? contentType : contentType.substring(0, pos)).trim();
+            for (String mimeType : mimeTypes) {
+                mimeType = mimeType.trim();
+                if (mimeType.endsWith("/*")) {
+                    int len = mimeType.length() - 1;
+                    if (type.regionMatches(true, 0, mimeType, 0, len)) return true;
+                } else if (type.equalsIgnoreCase(mimeType)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Compressed files, limited by the bytes of the compressed data. Reads are lock free,
+     * concurrent misses of the same file wait for the first compression.
+     */
+    private static class CompressedCache {
+
+        private final long budget;
+        private final BoundedCache<String, Compressed> cache;
+        private final ConcurrentHashMap<String, CompletableFuture<Compressed>> loading =
+                new ConcurrentHashMap<>();
+
+        private CompressedCache(long budget) {
+            this.budget = budget;
+            // compressed files are rarely smaller than 1k
+            int entries = (int) Math.min(1 << 20, Math.max(16, budget / 1024));
+            cache = new BoundedCache<>(entries, budget, compressed -> compressed.data.length);
+        }
+
+        /**
+         * Return the compressed file, compress it if not cached or changed.
+         *
+         * @return The compressed file or null if a concurrent compression failed or found another
+         *     version of the file
+         */
+        private Compressed get(String key, long modified, long size, Compression compression)
+                throws IOException {
+            Compressed compressed = cache.get(key);
+            if (compressed != null && compressed.modified == modified && compressed.size == size)
+                return compressed;
+            CompletableFuture<Compressed> future = new CompletableFuture<>();
+            CompletableFuture<Compressed> running = loading.putIfAbsent(key, future);
+            if (running != null) {
+                try {
+                    compressed = running.get();
+                } catch (ExecutionException e) {
+                    return null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                return compressed.modified == modified && compressed.size == size
+                        ? compressed
+                        : null;
+            }
+            try {
+                compressed = new Compressed(modified, size, compression.compress());
+                cache.put(key, compressed);
+                future.complete(compressed);
+                return compressed;
+            } catch (IOException | RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                loading.remove(key, future);
+            }
+        }
+    }
+
+    private interface Compression {
+        byte[] compress() throws IOException;
+    }
+
+    private static class Compressed {
+        private final long modified;
+        private final long size;
+        private final byte[] data;
+
+        private Compressed(long modified, long size, byte[] data) {
+            this.modified = modified;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    /** Output stream of the call while the filter is active. */
+    public static class CompressionStream extends OutputStream implements ChannelOutput {
+
+        private static final int UNDECIDED = 0;
+        private static final int PLAIN = 1;
+        private static final int COMPRESS = 2;
+        private static final int FINISHED = 3;
+
+        private final CallContext call;
+        private final OutputStream out;
+        private final Config config;
+        private final String encoding;
+        private final boolean gzip;
+        private int state = UNDECIDED;
+        private Deflater deflater;
+        private CRC32 crc;
+        private byte[] buffer;
+        private long written;
+
+        private CompressionStream(
+                CallContext call, OutputStream out, Config config, String encoding) {
+            this.call = call;
+            this.out = out;
+            this.config = config;
+            this.encoding = encoding;
+            this.gzip = "gzip".equals(encoding);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            decide();
+            written += len;
+            if (state != COMPRESS) {
+                out.write(b, off, len);
+                return;
+            }
+            start();
+            if (gzip) crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) deflate(Deflater.NO_FLUSH);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+
+        /**
+         * Write the end of the compressed content. The underlying stream is not closed.
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            decide();
+            if (state != COMPRESS) return;
+            state = FINISHED;
+            try {
+                start();
+                deflater.finish();
+                while (!deflater.finished()) deflate(Deflater.NO_FLUSH);
+                if (gzip) writeTrailer(out, crc.getValue(), deflater.getBytesRead());
+                out.flush();
+            } finally {
+                releaseDeflater(gzip, deflater);
+                deflater = null;
+            }
+        }
+
+        /** Send a complete file, compressed from the cache if possible. */
+        @Override
+        public boolean sendFile(File file, long modified, long size) throws IOException {
+            if (written > 0 || state == FINISHED) return false;
+            decide();
+            if (state == PLAIN)
+                return out instanceof ChannelOutput
+                        && ((ChannelOutput) out).sendFile(file, modified, size);
+            if (state != COMPRESS || config.cache == null) return false;
+            if (size > config.maxCachedFileSize || size > config.cache.budget) return false;
+            String key = encoding + ":" + file.getPath();
+            Compressed compressed = config.cache.get(key, modified, size, () -> compress(file));
+            if (compressed == null) return false;
+            // the stream is not needed any more
+            state = FINISHED;
+            releaseDeflater(gzip, deflater);
+            deflater = null;
+            call.getHttpResponse().setContentLengthLong(compressed.data.length);
+            written = size;
+            out.write(compressed.data);
+            return true;
+        }
+
+        @Override
+        public boolean sendFile(FileChannel channel, long position, long count)
+                throws IOException {
+            decide();
+            return state == PLAIN
+                    && out instanceof ChannelOutput
+                    && ((ChannelOutput) out).sendFile(channel, position, count);
+        }
+
+        @Override
+        public boolean sendBuffer(ByteBuffer content) throws IOException {
+            decide();
+            return state == PLAIN
+                    && out instanceof ChannelOutput
+                    && ((ChannelOutput) out).sendBuffer(content);
+        }
+
+        private byte[] compress(File file) throws IOException {
+            Deflater fileDeflater = acquireDeflater(gzip, config.level);
+            try (InputStream is = new FileInputStream(file)) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream((int) (file.length() / 3));
+                if (gzip) bos.write(GZIP_HEADER);
+                CRC32 fileCrc = new CRC32();
+                byte[] in = new byte[BUFFER_SIZE];
+                byte[] tmp = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = is.read(in)) >= 0) {
+                    fileCrc.update(in, 0, len);
+                    fileDeflater.setInput(in, 0, len);
+                    while (!fileDeflater.needsInput()) {
+                        int n = fileDeflater.deflate(tmp);
+                        bos.write(tmp, 0, n);
+                    }
+                }
+                fileDeflater.finish();
+                while (!fileDeflater.finished()) {
+                    int n = fileDeflater.deflate(tmp);
+                    bos.write(tmp, 0, n);
+                }
+                if (gzip) writeTrailer(bos, fileCrc.getValue(), fileDeflater.getBytesRead());
+                return bos.toByteArray();
+            } finally {
+                releaseDeflater(gzip, fileDeflater);
+            }
+        }
+
+        private void decide() throws IOException {
+            if (state != UNDECIDED) return;
+            state = PLAIN;
+            HttpServletResponse res = call.getHttpResponse();
+            if (res.isCommitted() || res.getStatus() != HttpServletResponse.SC_OK) return;
+            if (res.getHeader("Content-Encoding") != null) return;
+            if (!config.isCompressible(res.getContentType())) return;
+            res.addHeader("Vary", "Accept-Encoding");
+            String length = res.getHeader("Content-Length");
+            if (length != null && Long.parseLong(length) < config.minSize) return;
+            state = COMPRESS;
+            res.setHeader("Content-Length", null);
+            res.setHeader("Content-Encoding", encoding);
+            // the representation changed, the tag can't be strong any more
+            String etag = res.getHeader("ETag");
+            if (etag != null && !etag.startsWith("W/")) res.setHeader("ETag", "W/" + etag);
+            deflater = acquireDeflater(gzip, config.level);
+            buffer = new byte[BUFFER_SIZE];
+        }
+
+        private void start() throws IOException {
+            if (!gzip || crc != null) return;
+            // written with the first content, sendFile() writes its own header
+            crc = new CRC32();
+            out.write(GZIP_HEADER);
+        }
+
+        private void deflate(int flush) throws IOException {
+            int len = deflater.deflate(buffer, 0, buffer.length, flush);
+            if (len > 0) out.write(buffer, 0, len);
+        }
+
+        private static void writeTrailer(OutputStream os, long crc, long size) throws IOException {
+            writeInt(os, (int) crc);
+            writeInt(os, (int) size);
+        }
+
+        private static void writeInt(OutputStream os, int value) throws IOException {
+            os.write(value & 0xff);
+            os.write((value >> 8) & 0xff);
+            os.write((value >> 16) & 0xff);
+            os.write((value >> 24) & 0xff);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package de.mhus.app.web.util.filter;
 
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.mhus.app.web.api.InternalCallContext;
 import de.mhus.app.web.api.VirtualHost;
@@ -32,7 +33,8 @@ public class FilterToMApi implements WebFilter {
     private INode config;
     private String serviceName;
     private Class<?> serviceClass;
-    private WebFilter webFilter;
+    private volatile WebFilter webFilter;
+    private final ReentrantLock lock = new ReentrantLock();
     private VirtualHost vHost;
     private UUID instanceId = UUID.randomUUID();
 
@@ -45,28 +47,37 @@ public class FilterToMApi implements WebFilter {
 
     @Override
     public boolean doFilterBegin(UUID instance, InternalCallContext call) throws MException {
-        check();
-        if (webFilter == null) throw new NotFoundException("service not found", serviceName);
-        return webFilter.doFilterBegin(instanceId, call);
+        WebFilter delegate = check();
+        if (delegate == null) throw new NotFoundException("service not found", serviceName);
+        return delegate.doFilterBegin(instanceId, call);
     }
 
     @Override
     public void doFilterEnd(UUID instance, InternalCallContext call) throws MException {
-        check();
-        if (webFilter == null) throw new NotFoundException("service not found", serviceName);
-        webFilter.doFilterEnd(instanceId, call);
+        WebFilter delegate = check();
+        if (delegate == null) throw new NotFoundException("service not found", serviceName);
+        delegate.doFilterEnd(instanceId, call);
     }
 
-    private synchronized void check() {
-        if (webFilter == null) {
-            OsgiBundleClassLoader loader = new OsgiBundleClassLoader();
-            try {
+    private WebFilter check() {
+        WebFilter delegate = webFilter;
+        if (delegate != null) return delegate;
+        lock.lock();
+        try {
+            if (webFilter == null) {
+                OsgiBundleClassLoader loader = new OsgiBundleClassLoader();
                 serviceClass = loader.loadClass(serviceName);
-                webFilter = (WebFilter) M.l(serviceClass);
-                webFilter.doInitialize(instanceId, vHost, config);
-            } catch (Throwable e) {
-                MLogUtil.log().e(serviceName, e);
+                delegate = (WebFilter) M.l(serviceClass);
+                delegate.doInitialize(instanceId, vHost, config);
+                // publish after initialization
+                webFilter = delegate;
             }
+            return webFilter;
+        } catch (Throwable e) {
+            MLogUtil.log().e(serviceName, e);
+            return null;
+        } finally {
+            lock.unlock();
         }
     }
 }
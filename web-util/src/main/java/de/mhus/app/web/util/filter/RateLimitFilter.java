@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util.filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import de.mhus.app.web.api.InternalCallContext;
+import de.mhus.app.web.api.VirtualHost;
+import de.mhus.app.web.api.WebFilter;
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.node.INode;
+import de.mhus.lib.errors.MException;
+
+/**
+ * Throttle requests per client ip with token buckets. Every client has its own bucket, packed into
+ * one long and charged with a single compare and set. At most 'clients' buckets are kept, a full
+ * bucket is the same as no bucket and is dropped by a sweep. Clients without a bucket while the
+ * table is full share one overflow bucket, a flood of distinct ips is throttled as one client.
+ */
+public class RateLimitFilter extends MLog implements WebFilter {
+
+    public static String NAME = "rate_limit_filter";
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    // tokens are fixed point with 8 fraction bits in the lower 24 bits, the time in ms above
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE = 256;
+    private static final int MAX_BURST = (int) (TOKEN_MASK / ONE);
+    private static final long SWEEP_INTERVAL = 1000;
+
+    @Override
+    public void doInitialize(UUID instance, VirtualHost vHost, INode config) throws MException {
+        vHost.getProperties().put(NAME + instance, new Config(config));
+    }
+
+    @Override
+    public boolean doFilterBegin(UUID instance, InternalCallContext call) throws MException {
+        Config config = (Config) call.getVirtualHost().getProperties().get(NAME + instance);
+        if (config == null) return true;
+        Budget budget = config.find(call.getHttpPath());
+        if (budget == null) return true;
+        String ip = call.getRemoteIp();
+        if (ip == null) ip = call.getHttpRequest().getRemoteAddr();
+        long wait = budget.tryAcquire(ip, config.now());
+        if (wait == 0) return true;
+
+        if (call.getVirtualHost().isTraceAccess())
+            log().d("rate limit", call.getVirtualHost().getName(), ip, budget.path, wait);
+        HttpServletResponse res = call.getHttpResponse();
+        if (res.isCommitted()) return false;
+        res.setHeader("Retry-After", String.valueOf(Math.max(1, (wait + 999) / 1000)));
+        try {
+            res.sendError(SC_TOO_MANY_REQUESTS);
+        } catch (IOException e) {
+            log().t(e);
+        }
+        return false;
+    }
+
+    @Override
+    public void doFilterEnd(UUID instance, InternalCallContext call) throws MException {}
+
+    private static class Config {
+
+        private final long epoch = System.nanoTime();
+        private final Budget[] budgets;
+
+        public Config(INode config) {
+            int clients = config.getInt("clients", 65536);
+            ArrayList<Budget> list = new ArrayList<>();
+            for (INode node : config.getObjectList("budgets"))
+                list.add(
+                        new Budget(
+                                node.getString("path", "/"),
+                                node.getDouble("rate", 0),
+                                node.getInt("burst", 0),
+                                clients));
+            list.add(
+                    new Budget(
+                            "",
+                            config.getDouble("rate", 10),
+                            config.getInt("burst", 0),
+                            clients));
+            // longest prefix first
+            list.sort((a, b) -> Integer.compare(b.path.length(), a.path.length()));
+            budgets = list.toArray(new Budget[list.size()]);
+        }
+
+        public Budget find(String path) {
+            for (Budget budget : budgets)
+                if (path.startsWith(budget.path)) return budget.rate > 0 ? budget : null;
+            return null;
+        }
+
+        // ms since start
+        public long now() {
+            return (System.nanoTime() - epoch) / 1000000 + 1;
+        }
+    }
+
+    private static class Budget {
+
+        private final String path;
+        private final double rate;
+        private final long capacity;
+        private final double refill;
+        private final int clients;
+        private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+        private final AtomicLong overflow;
+        private final AtomicBoolean sweeping = new AtomicBoolean();
+        private volatile long nextSweep;
+
+        public Budget(String path, double rate, int burst, int clients) {
+            this.path = path;
+            this.rate = rate;
+            if (burst <= 0) burst = (int) Math.ceil(rate);
+            capacity = Math.min(MAX_BURST, Math.max(1, burst)) * ONE;
+            refill = rate * ONE / 1000;
+            this.clients = Math.max(1, clients);
+            overflow = new AtomicLong(capacity);
+        }
+
+        /**
+         * Take a token for the key.
+         *
+         * @return 0 if accepted or the time in ms until the next token is available
+         */
+        public long tryAcquire(String key, long now) {
+            AtomicLong bucket = buckets.get(key);
+            if (bucket == null) bucket = create(key, now);
+            while (true) {
+                long current = bucket.get();
+                long tokens = tokens(current, now);
+                if (tokens < ONE) return (long) Math.ceil((ONE - tokens) / refill);
+                if (bucket.compareAndSet(current, now << TOKEN_BITS | (tokens - ONE))) return 0;
+            }
+        }
+
+        private AtomicLong create(String key, long now) {
+            if (buckets.size() >= clients) sweep(now);
+            if (buckets.size() >= clients) return overflow;
+            AtomicLong bucket = new AtomicLong(now << TOKEN_BITS | capacity);
+            AtomicLong current = buckets.putIfAbsent(key, bucket);
+            return current == null ? bucket : current;
+        }
+
+        /**
+         * Remove the buckets refilled to the capacity. A request charging a removed bucket at the
+         * same time is not counted, the client gets one token more.
+         */
+        private void sweep(long now) {
+            if (now < nextSweep || !sweeping.compareAndSet(false, true)) return;
+            try {
+                buckets.values().removeIf(bucket -> tokens(bucket.get(), now) >= capacity);
+                nextSweep = now + SWEEP_INTERVAL;
+            } finally {
+                sweeping.set(false);
+            }
+        }
+
+        private long tokens(long bucket, long now) {
+            long tokens = bucket & TOKEN_MASK;
+            long elapsed = now - (bucket >>> TOKEN_BITS);
+            if (elapsed <= 0) return tokens;
+            return (long) Math.min(capacity, tokens + elapsed * refill);
+        }
+    }
+}
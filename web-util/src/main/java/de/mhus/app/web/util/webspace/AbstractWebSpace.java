@@ -16,23 +16,42 @@
 package de.mhus.app.web.util.webspace;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletResponse;
 
 import de.mhus.app.web.api.CallContext;
+import de.mhus.app.web.api.ChannelOutput;
 import de.mhus.app.web.api.CherryApi;
+import de.mhus.app.web.api.FileChangeListener;
 import de.mhus.app.web.api.TypeDefinition;
 import de.mhus.app.web.api.TypeHeader;
 import de.mhus.app.web.api.VirtualWebSpace;
 import de.mhus.app.web.api.WebArea;
 import de.mhus.app.web.api.WebFilter;
+import de.mhus.app.web.api.util.AdmissionControl;
+import de.mhus.app.web.api.util.BoundedCache;
+import de.mhus.app.web.api.util.ConcurrencyLimit;
+import de.mhus.app.web.api.util.ContentCache;
+import de.mhus.app.web.api.util.FixedLimit;
+import de.mhus.app.web.api.util.GradientLimit;
+import de.mhus.app.web.api.util.VegasLimit;
 import de.mhus.app.web.util.AbstractVirtualHost;
+import de.mhus.app.web.util.AreaRouter;
+import de.mhus.app.web.util.DocumentIndex;
+import de.mhus.app.web.util.StaticContent;
 import de.mhus.lib.basics.RC;
 import de.mhus.lib.core.M;
+import de.mhus.lib.core.MDate;
+import de.mhus.lib.core.MFile;
 import de.mhus.lib.core.MSystem;
-import de.mhus.lib.core.io.FileWatch;
 import de.mhus.lib.core.node.INode;
 import de.mhus.lib.core.node.INodeFactory;
 import de.mhus.lib.errors.MException;
@@ -44,7 +63,12 @@ public abstract class AbstractWebSpace extends AbstractVirtualHost implements Vi
     private INode cServer;
     private File configRoot;
     private File documentRoot;
-    private FileWatch configWatch;
+    private DocumentIndex documentIndex;
+    private FileChangeListener configListener;
+    private FileChangeListener documentListener;
+    private volatile boolean documentsWatched;
+    private ContentCache.Quota contentQuota;
+    private BoundedCache<File, Precompressed> precompressed;
     private Date updated;
     protected HashMap<String, TypeDefinition> types = new HashMap<>();
 
@@ -88,6 +112,23 @@ public abstract class AbstractWebSpace extends AbstractVirtualHost implements Vi
         traceAccess = cServer.getBoolean("traceAccess", false);
         // defaultMimeType
         defaultMimeType = cServer.getString("defaultMimeType", defaultMimeType);
+        // concurrency limit
+        int maxConcurrentRequests = cServer.getInt("maxConcurrentRequests", 0);
+        if (maxConcurrentRequests > 0)
+            setAdmissionControl(
+                    new AdmissionControl(
+                            createConcurrencyLimit(maxConcurrentRequests),
+                            cServer.getInt("maxQueuedRequests", 0),
+                            cServer.getLong("queueTimeout", 1000),
+                            cServer.getInt("retryAfter", 1)));
+        else setAdmissionControl(null);
+        // precompressed sidecar files
+        if (cServer.getBoolean("precompressed", true))
+            precompressed = new BoundedCache<>(cServer.getInt("precompressedCacheSize", 10000));
+        // content cache
+        long contentCacheQuota = cServer.getLong("contentCacheQuota", 0);
+        if (contentCacheQuota > 0)
+            contentQuota = ContentCache.instance().createQuota(getName(), contentCacheQuota);
         // load filters
         OsgiBundleClassLoader loader = new OsgiBundleClassLoader();
         for (INode filterDef : cServer.getObjectList("filters")) {
@@ -145,23 +186,228 @@ public abstract class AbstractWebSpace extends AbstractVirtualHost implements Vi
         }
 
         if (cServer.getBoolean("watchConfiguration", true)) {
-            configWatch =
-                    new FileWatch(
-                                    new File(configRoot, configFile + ".json"),
-                                    new FileWatch
-                                            .Listener() { // TODO could also be another extension
-
-                                        @Override
-                                        public void onFileWatchError(
-                                                FileWatch fileWatch, Throwable t) {}
-
-                                        @Override
-                                        public void onFileChanged(FileWatch fileWatch) {
-                                            log().i("configuration changed: restart", getName());
-                                            api.restart(AbstractWebSpace.this);
-                                        }
-                                    })
-                            .doStart();
+            configListener =
+                    files -> {
+                        log().i("configuration changed: restart", getName(), files);
+                        api.restart(AbstractWebSpace.this);
+                    };
+            // the config can have any supported extension
+            File[] configFiles = configRoot.listFiles((d, n) -> n.startsWith(configFile + "."));
+            if (configFiles != null) for (File file : configFiles) api.watch(file, configListener);
+        }
+        documentIndex =
+                new DocumentIndex(
+                        documentRoot,
+                        cServer.getInt("documentIndexThreads", 8),
+                        cServer.getInt("documentIndexMaxEntries", 200000));
+        if (cServer.getBoolean("watchDocuments", true) && documentRoot.isDirectory()) {
+            documentListener =
+                    new FileChangeListener() {
+                        @Override
+                        public void onFilesChanged(Set<File> files) {
+                            onDocumentsChanged(files);
+                        }
+
+                        @Override
+                        public void onWatchFailed(File path) {
+                            onDocumentsNotWatched();
+                        }
+                    };
+            documentsWatched = api.watch(documentRoot, documentListener);
+            if (!documentsWatched) onDocumentsNotWatched();
+            // after watching, changes while building are not lost
+            else if (cServer.getBoolean("documentIndex", false)) documentIndex.build();
+        } else if (cServer.getBoolean("documentIndex", false))
+            log().w("document index needs watchDocuments", getName());
+    }
+
+    /**
+     * Called if files in the document root are changed. Use it to invalidate caches, call super.
+     *
+     * @param files Changed files
+     */
+    protected void onDocumentsChanged(Set<File> files) {
+        documentIndex.update(files);
+        if (contentQuota != null) ContentCache.instance().removeAll(files);
+        BoundedCache<File, Precompressed> cache = precompressed;
+        if (cache != null) {
+            List<String> dirs = new ArrayList<>();
+            for (File file : files) {
+                String path = file.getPath();
+                if (path.endsWith(".gz") || path.endsWith(".br"))
+                    cache.remove(new File(path.substring(0, path.length() - 3)));
+                else if (cache.remove(file) == null && !documentIndex.isFile(file))
+                    // a directory, the lookups below it are invalid
+                    dirs.add(path + File.separatorChar);
+            }
+            if (!dirs.isEmpty())
+                cache.removeIf(
+                        key -> {
+                            for (String dir : dirs) if (key.getPath().startsWith(dir)) return true;
+                            return false;
+                        });
+        }
+    }
+
+    /**
+     * Called if the document root is not completely watched, changes can be missed. Caches
+     * depending on onDocumentsChanged() must be disabled, call super.
+     */
+    protected void onDocumentsNotWatched() {
+        log().w("document root is not completely watched, caches disabled", getName());
+        documentsWatched = false;
+        documentIndex.disable();
+        BoundedCache<File, Precompressed> cache = precompressed;
+        if (cache != null) cache.clear();
+    }
+
+    /**
+     * Select a precompressed version of the file accepted by the client. The sidecar files
+     * 'file.br' and 'file.gz' are used if they are not older than the file. Sets the Vary header if
+     * sidecar files exist.
+     *
+     * @param context The call
+     * @param file The original file
+     * @return "br", "gzip" or null to send the original file
+     */
+    protected String selectPrecompressed(CallContext context, File file) {
+        BoundedCache<File, Precompressed> cache = precompressed;
+        if (cache == null) return null;
+        long modified = documentIndex.lastModified(file);
+        // without the watch a cached lookup is never invalidated
+        boolean watched = isWatchingDocuments();
+        Precompressed entry = watched ? cache.get(file) : null;
+        boolean cached = entry != null && entry.modified == modified;
+        if (!cached) {
+            // the lookup is cached, also if there are no sidecar files
+            entry =
+                    new Precompressed(
+                            modified,
+                            findSidecar(file, ".br", modified),
+                            findSidecar(file, ".gz", modified));
+            if (watched) cache.put(file, entry);
+        }
+        if (entry.br == null && entry.gzip == null) return null;
+        context.getHttpResponse().addHeader("Vary", "Accept-Encoding");
+        String encoding =
+                StaticContent.selectEncoding(
+                        context.getHttpRequest().getHeader("Accept-Encoding"),
+                        entry.br != null,
+                        entry.gzip != null);
+        // the sidecar can be deleted before the watch reports it, send the original file
+        if (cached
+                && encoding != null
+                && documentIndex.validate(getPrecompressedFile(file, encoding)) == null) {
+            cache.remove(file);
+            return null;
+        }
+        return encoding;
+    }
+
+    /**
+     * Return the file to send for the encoding selected by selectPrecompressed().
+     *
+     * @param file The original file
+     * @param encoding The encoding or null
+     * @return The sidecar or the original file
+     */
+    protected File getPrecompressedFile(File file, String encoding) {
+        if (encoding == null) return file;
+        return new File(file.getPath() + ("br".equals(encoding) ? ".br" : ".gz"));
+    }
+
+    private File findSidecar(File file, String extension, long modified) {
+        File sidecar = new File(file.getPath() + extension);
+        return documentIndex.isFile(sidecar) && documentIndex.lastModified(sidecar) >= modified
+                ? sidecar
+                : null;
+    }
+
+    /**
+     * Check the conditional request headers against the current version of the content. If the
+     * client has the current version the response is prepared as 304 and nothing must be sent.
+     *
+     * @param context The call
+     * @param path Path for the type headers
+     * @param etag Current tag of the content
+     * @param lastModified Modification time of the content
+     * @return true if the response is 304
+     */
+    protected boolean isNotModified(
+            CallContext context, String path, String etag, long lastModified) {
+        if (!StaticContent.isNotModified(context.getHttpRequest(), etag, lastModified))
+            return false;
+        // send the same cache headers as for the content
+        prepareHead(context, MFile.getFileExtension(path), path);
+        HttpServletResponse resp = context.getHttpResponse();
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Last-Modified", MDate.toHttpHeaderDate(lastModified));
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    /**
+     * Read the current entry of a file before it is sent. Size, modification time and tag of the
+     * headers must describe the bytes that are sent, the index can be behind the file. Use the
+     * entry for all of them, the file is not checked again.
+     *
+     * @param file The file
+     * @return The entry or null if the file does not exist
+     */
+    protected DocumentIndex.Entry validateDocument(File file) {
+        return documentIndex.validate(file);
+    }
+
+    /**
+     * Create a strong entity tag for the file like StaticContent.createETag().
+     *
+     * @param entry The entry of the file
+     * @return The tag including quotes
+     */
+    protected String createETag(DocumentIndex.Entry entry) {
+        return StaticContent.createETag(false, entry.getModified(), entry.getSize());
+    }
+
+    /**
+     * Send a static file, small files are served from the content cache if enabled.
+     *
+     * @param os Output of the call
+     * @param file The file
+     * @param entry The entry of the file returned by validateDocument()
+     * @param last true if nothing is written after the file, it can be sent by the container
+     * @throws IOException
+     */
+    protected void sendStaticFile(
+            OutputStream os, File file, DocumentIndex.Entry entry, boolean last)
+            throws IOException {
+        long modified = entry.getModified();
+        long size = entry.getSize();
+        if (last
+                && os instanceof ChannelOutput
+                && ((ChannelOutput) os).sendFile(file, modified, size)) return;
+        ContentCache.Quota quota = contentQuota;
+        ByteBuffer content =
+                quota == null ? null : ContentCache.instance().get(file, modified, size, quota);
+        if (content != null) {
+            if (last) StaticContent.send(os, content);
+            else StaticContent.copy(os, content);
+        } else if (last) StaticContent.send(os, file);
+        else StaticContent.copy(os, file);
+    }
+
+    protected ConcurrencyLimit createConcurrencyLimit(int max) throws MException {
+        String algorithm = cServer.getString("concurrencyLimit", "fixed");
+        int min = cServer.getInt("minConcurrentRequests", 1);
+        int initial = cServer.getInt("initialConcurrentRequests", max);
+        switch (algorithm) {
+            case "fixed":
+                return new FixedLimit(max);
+            case "vegas":
+                return new VegasLimit(initial, min, max);
+            case "gradient":
+                return new GradientLimit(initial, min, max);
+            default:
+                throw new MException(RC.INTERNAL_ERROR, "unknown concurrency limit", algorithm);
         }
     }
 
@@ -179,10 +425,26 @@ public abstract class AbstractWebSpace extends AbstractVirtualHost implements Vi
 
     @Override
     public void stop(CherryApi api) {
+        if (configListener != null) api.unwatch(configListener);
+        if (documentListener != null) api.unwatch(documentListener);
+        configListener = null;
+        documentListener = null;
         config = null;
         cServer = null;
-        if (configWatch != null) configWatch.cancel();
-        configWatch = null;
+        filters.clear();
+        filtersReverse.clear();
+        areas = new AreaRouter();
+        types.clear();
+        setAdmissionControl(null);
+        if (contentQuota != null) ContentCache.instance().releaseQuota(contentQuota);
+        contentQuota = null;
+        precompressed = null;
+    }
+
+    @Override
+    protected void initSuccessor(AbstractVirtualHost successor) throws MException {
+        super.initSuccessor(successor);
+        ((AbstractWebSpace) successor).root = root;
     }
 
     @Override
@@ -200,6 +462,37 @@ public abstract class AbstractWebSpace extends AbstractVirtualHost implements Vi
         return documentRoot;
     }
 
+    /**
+     * Return true if changes of the document root are watched and onDocumentsChanged() is called.
+     *
+     * @return true if watched
+     */
+    protected boolean isWatchingDocuments() {
+        return documentListener != null && documentsWatched;
+    }
+
+    /**
+     * Return true if the file is the document root or below it.
+     *
+     * @param file The file
+     * @return true if in the document root
+     */
+    protected boolean isDocument(File file) {
+        String rootPath = documentRoot.getAbsolutePath();
+        String path = file.getAbsolutePath();
+        return path.equals(rootPath) || path.startsWith(rootPath + File.separator);
+    }
+
+    /**
+     * Return the index of the document root. If the index is disabled it answers from the file
+     * system.
+     *
+     * @return The index
+     */
+    public DocumentIndex getDocumentIndex() {
+        return documentIndex;
+    }
+
     @Override
     public Date getUpdated() {
         return updated;
@@ -251,4 +544,16 @@ public abstract class AbstractWebSpace extends AbstractVirtualHost implements Vi
                 if (type2 != null) addHeaders(type2, resp, level + 1);
             }
     }
+
+    private static class Precompressed {
+        private final long modified;
+        private final File br;
+        private final File gzip;
+
+        private Precompressed(long modified, File br, File gzip) {
+            this.modified = modified;
+            this.br = br;
+            this.gzip = gzip;
+        }
+    }
 }
@@ -16,13 +16,14 @@
 package de.mhus.app.web.util.webspace;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.OutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
 import de.mhus.app.web.api.CallContext;
 import de.mhus.app.web.api.CherryApi;
+import de.mhus.app.web.util.DocumentIndex;
+import de.mhus.app.web.util.StaticContent;
 import de.mhus.lib.core.MDate;
 import de.mhus.lib.core.MFile;
 import de.mhus.lib.core.node.INode;
@@ -57,11 +58,12 @@ public class DirectoryWebSpace extends AbstractWebSpace {
         String path = context.getHttpPath();
         path = MFile.normalizePath(path);
         File file = new File(getDocumentRoot(), path);
-        if (!file.exists()) {
+        DocumentIndex documents = getDocumentIndex();
+        if (!documents.exists(file)) {
             sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
             return;
         }
-        if (file.isDirectory()) {
+        if (documents.isDirectory(file)) {
             file = findIndex(file);
             if (file == null) {
                 // TODO support directory indexing ?
@@ -69,7 +71,15 @@ public class DirectoryWebSpace extends AbstractWebSpace {
                 return;
             }
         }
-        prepareHead(context, file);
+        String encoding = selectPrecompressed(context, file);
+        File content = getPrecompressedFile(file, encoding);
+        DocumentIndex.Entry entry = validateDocument(content);
+        if (entry == null) {
+            sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
+            return;
+        }
+        if (isNotModified(context, file, entry)) return;
+        prepareHead(context, file, entry, encoding);
     }
 
     @Override
@@ -77,11 +87,12 @@ public class DirectoryWebSpace extends AbstractWebSpace {
         String path = context.getHttpPath();
         path = MFile.normalizePath(path);
         File file = new File(getDocumentRoot(), path);
-        if (!file.exists()) {
+        DocumentIndex documents = getDocumentIndex();
+        if (!documents.exists(file)) {
             sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
             return;
         }
-        if (file.isDirectory()) {
+        if (documents.isDirectory(file)) {
             file = findIndex(file);
             if (file == null) {
                 // TODO support directory indexing ?
@@ -89,14 +100,24 @@ public class DirectoryWebSpace extends AbstractWebSpace {
                 return;
             }
         }
-        prepareHead(context, file);
+        String encoding = selectPrecompressed(context, file);
+        File content = getPrecompressedFile(file, encoding);
+        DocumentIndex.Entry entry = validateDocument(content);
+        if (entry == null) {
+            sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
+            return;
+        }
+        // before the file is opened
+        if (isNotModified(context, file, entry)) return;
+        prepareHead(context, file, entry, encoding);
 
         try {
-            FileInputStream is = new FileInputStream(file);
             OutputStream os = context.getOutputStream();
-            MFile.copyFile(is, os);
+            String etag = createETag(entry);
+            if (!StaticContent.sendRanges(
+                    context, content, etag, entry.getModified(), entry.getSize()))
+                sendStaticFile(os, content, entry, true);
             os.close();
-            is.close();
         } catch (Throwable t) {
             log().w("get failed", file, t);
             sendError(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, t);
@@ -107,17 +128,39 @@ public class DirectoryWebSpace extends AbstractWebSpace {
 
         for (String index : indexes) {
             File file = new File(dir, index);
-            if (file.exists() && file.isFile()) return file;
+            if (getDocumentIndex().isFile(file)) return file;
         }
 
         return null;
     }
 
+    protected boolean isNotModified(CallContext context, File file, DocumentIndex.Entry content) {
+        return isNotModified(
+                context, file.getAbsolutePath(), createETag(content), content.getModified());
+    }
+
     protected void prepareHead(CallContext context, File file) {
+        DocumentIndex.Entry entry = validateDocument(file);
+        if (entry != null) prepareHead(context, file, entry, null);
+    }
+
+    /**
+     * Set the headers of the content.
+     *
+     * @param context The call
+     * @param file The requested file, defines the type
+     * @param content Entry of the file to send, the requested or a precompressed file
+     * @param encoding Content encoding of the content or null
+     */
+    protected void prepareHead(
+            CallContext context, File file, DocumentIndex.Entry content, String encoding) {
         HttpServletResponse resp = context.getHttpResponse();
-        resp.setContentLengthLong(file.length());
+        resp.setContentLengthLong(content.getSize());
         resp.setCharacterEncoding(charsetEncoding);
-        resp.setHeader("Last-Modified", MDate.toHttpHeaderDate(file.lastModified()));
+        resp.setHeader("Last-Modified", MDate.toHttpHeaderDate(content.getModified()));
+        resp.setHeader("ETag", createETag(content));
+        resp.setHeader("Accept-Ranges", "bytes");
+        if (encoding != null) resp.setHeader("Content-Encoding", encoding);
         super.prepareHead(context, MFile.getFileExtension(file), file.getAbsolutePath());
     }
 }
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util.webspace;
+
+import java.io.File;
+
+import de.mhus.app.web.api.util.BoundedCache;
+import de.mhus.app.web.util.DocumentIndex;
+import de.mhus.lib.core.IReadProperties;
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.MProperties;
+
+/**
+ * Configuration of files from sidecar files 'file.cfg'. Directories below the root can define
+ * defaults for all files in the directory and sub directories with '_dir.cfg', deeper directories
+ * and the file config overwrite them.
+ *
+ * <p>The merged config is created once and validated with modification time and size of all
+ * possible sources, also missing ones, by the document index. If the root is watched the owner
+ * calls clear() on changes and the configs are not validated. The returned configs must not be
+ * modified.
+ */
+public class FileConfigIndex extends MLog {
+
+    private final String rootPath;
+    private final String cfgExtension;
+    private final String dirConfig;
+    private final DocumentIndex documents;
+    private final BoundedCache<File, Entry> files;
+    private final BoundedCache<File, Entry> dirs;
+    private volatile boolean watched;
+
+    public FileConfigIndex(File root, String cfgExtension, int cacheSize, DocumentIndex documents) {
+        this.rootPath = root.getAbsolutePath();
+        this.cfgExtension = cfgExtension;
+        this.dirConfig = "_dir" + cfgExtension;
+        this.documents = documents;
+        files = new BoundedCache<>(Math.max(1, cacheSize));
+        dirs = new BoundedCache<>(Math.max(1, cacheSize / 10));
+    }
+
+    /**
+     * Return the merged config of the file.
+     *
+     * @param file The file
+     * @return The config, empty if no config is defined
+     */
+    public IReadProperties get(File file) {
+        file = file.getAbsoluteFile();
+        Entry entry = files.get(file);
+        if (entry != null && (watched || entry.isValid())) return entry.config;
+        File parent = file.getParentFile();
+        Entry dir = parent == null || !isInRoot(parent) ? null : getDir(parent);
+        entry = load(dir, new File(file.getPath() + cfgExtension));
+        files.put(file, entry);
+        return entry.config;
+    }
+
+    public void clear() {
+        files.clear();
+        dirs.clear();
+    }
+
+    /**
+     * Set if changes below the root are reported by clear(), the cached configs are validated
+     * otherwise.
+     *
+     * @param watched true if the root is watched
+     */
+    public void setWatched(boolean watched) {
+        this.watched = watched;
+    }
+
+    private Entry getDir(File dir) {
+        Entry entry = dirs.get(dir);
+        if (entry != null && (watched || entry.isValid())) return entry;
+        Entry parent = dir.getPath().equals(rootPath) ? null : getDir(dir.getParentFile());
+        entry = load(parent, new File(dir, dirConfig));
+        dirs.put(dir, entry);
+        return entry;
+    }
+
+    private Entry load(Entry parent, File cfgFile) {
+        int cnt = parent == null ? 1 : parent.sources.length + 1;
+        File[] sources = new File[cnt];
+        long[] stamps = new long[cnt * 2];
+        if (parent != null) {
+            System.arraycopy(parent.sources, 0, sources, 0, cnt - 1);
+            System.arraycopy(parent.stamps, 0, stamps, 0, stamps.length - 2);
+        }
+        sources[cnt - 1] = cfgFile;
+        MProperties config;
+        // the stamps before loading, a change while loading is found by the next check
+        long modified = documents.lastModified(cfgFile);
+        long size = documents.length(cfgFile);
+        stamps[stamps.length - 2] = modified;
+        stamps[stamps.length - 1] = size;
+        if (documents.isFile(cfgFile)) {
+            log().d("Load file config", cfgFile);
+            config = parent == null ? new MProperties() : new MProperties(parent.config);
+            MProperties local = MProperties.load(cfgFile);
+            if (local != null) config.putAll(local);
+        } else {
+            config = parent == null ? new MProperties() : parent.config;
+        }
+        return new Entry(config, sources, stamps);
+    }
+
+    private boolean isInRoot(File dir) {
+        String path = dir.getPath();
+        return path.equals(rootPath) || path.startsWith(rootPath + File.separator);
+    }
+
+    private class Entry {
+        private final MProperties config;
+        private final File[] sources;
+        private final long[] stamps;
+
+        private Entry(MProperties config, File[] sources, long[] stamps) {
+            this.config = config;
+            this.sources = sources;
+            this.stamps = stamps;
+        }
+
+        private boolean isValid() {
+            for (int i = 0; i < sources.length; i++) {
+                if (stamps[i * 2] != documents.lastModified(sources[i])
+                        || stamps[i * 2 + 1] != documents.length(sources[i])) return false;
+            }
+            return true;
+        }
+    }
+}
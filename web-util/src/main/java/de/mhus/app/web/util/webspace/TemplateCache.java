@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util.webspace;
+
+import java.io.File;
+
+import de.mhus.app.web.api.util.BoundedCache;
+import de.mhus.app.web.util.DocumentIndex;
+import de.mhus.app.web.util.webspace.TemplateCompiler.Template;
+import de.mhus.lib.core.MLog;
+
+/**
+ * Bounded cache of compiled templates by file and processor. Entries are validated with
+ * modification time and size of the template file, changes of included templates are found by
+ * clear() on document changes. Templates of compilers that are not cacheable, like the default
+ * TransformTemplateCompiler, are compiled for every call without validation.
+ */
+public class TemplateCache extends MLog {
+
+    private final TemplateCompiler compiler;
+    private final File projectRoot;
+    private final DocumentIndex documents;
+    private final BoundedCache<String, Entry> cache;
+    private final boolean cacheable;
+
+    public TemplateCache(
+            TemplateCompiler compiler, File projectRoot, int cacheSize, DocumentIndex documents) {
+        this.compiler = compiler;
+        this.projectRoot = projectRoot;
+        this.documents = documents;
+        cache = new BoundedCache<>(Math.max(1, cacheSize));
+        cacheable = compiler.isCacheable();
+    }
+
+    /**
+     * Return the compiled template, compile it if not cached or changed.
+     *
+     * @param file The template file
+     * @param processor Name of the processor or null
+     * @return The template
+     * @throws Exception If the compilation fails
+     */
+    public Template get(File file, String processor) throws Exception {
+        if (!cacheable) return compiler.compile(file, projectRoot, processor);
+        String key = processor == null ? file.getPath() : file.getPath() + '\n' + processor;
+        long modified = documents.lastModified(file);
+        long size = documents.length(file);
+        Entry entry = cache.get(key);
+        if (entry != null && entry.modified == modified && entry.size == size)
+            return entry.template;
+        log().d("compile template", file, processor);
+        entry = new Entry(modified, size, compiler.compile(file, projectRoot, processor));
+        cache.put(key, entry);
+        return entry.template;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    private static class Entry {
+        private final long modified;
+        private final long size;
+        private final Template template;
+
+        private Entry(long modified, long size, Template template) {
+            this.modified = modified;
+            this.size = size;
+            this.template = template;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util.webspace;
+
+import java.io.File;
+import java.io.OutputStream;
+
+import de.mhus.lib.core.MProperties;
+
+/**
+ * Compile templates for TransformWebSpace. Compiled templates are cached by TemplateCache and
+ * rendered for many requests, they must be thread safe.
+ */
+public interface TemplateCompiler {
+
+    /**
+     * Compile the template.
+     *
+     * @param template The template file
+     * @param projectRoot Root for includes of the template
+     * @param processor Name of the processor or null to select it by the file
+     * @return The compiled template
+     * @throws Exception
+     */
+    Template compile(File template, File projectRoot, String processor) throws Exception;
+
+    /**
+     * Return false if compile() keeps no parsed state, the templates are not cached then.
+     *
+     * @return true if compiled templates should be cached
+     */
+    default boolean isCacheable() {
+        return true;
+    }
+
+    interface Template {
+
+        void render(OutputStream os, MProperties param) throws Exception;
+    }
+}
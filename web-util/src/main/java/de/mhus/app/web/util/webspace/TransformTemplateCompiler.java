@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util.webspace;
+
+import java.io.File;
+
+import de.mhus.osgi.transform.api.TransformUtil;
+
+/**
+ * Default compiler, the templates are rendered by TransformUtil. The transform api accepts files
+ * only, the processors parse the file for each rendering. The returned template holds no parsed
+ * state and is not cached. Configure 'templateCompiler' with a compiler of the template engine to
+ * cache parsed templates.
+ */
+public class TransformTemplateCompiler implements TemplateCompiler {
+
+    @Override
+    public Template compile(File template, File projectRoot, String processor) {
+        return (os, param) ->
+                TransformUtil.transform(template, os, projectRoot, null, null, param, processor);
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return false;
+    }
+}
@@ -16,9 +16,12 @@
 package de.mhus.app.web.util.webspace;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -26,7 +29,11 @@ import javax.servlet.http.HttpServletResponse;
 import de.mhus.app.web.api.CallContext;
 import de.mhus.app.web.api.CanTransform;
 import de.mhus.app.web.api.CherryApi;
+import de.mhus.app.web.api.util.BoundedCache;
 import de.mhus.app.web.util.CherryWebUtil;
+import de.mhus.app.web.util.DocumentIndex;
+import de.mhus.app.web.util.StaticContent;
+import de.mhus.lib.basics.RC;
 import de.mhus.lib.core.IReadProperties;
 import de.mhus.lib.core.M;
 import de.mhus.lib.core.MCollection;
@@ -38,9 +45,8 @@ import de.mhus.lib.core.MSystem;
 import de.mhus.lib.core.crypt.MRandom;
 import de.mhus.lib.core.io.http.MHttp;
 import de.mhus.lib.core.node.INode;
-import de.mhus.lib.core.util.SoftHashMap;
 import de.mhus.lib.errors.MException;
-import de.mhus.osgi.transform.api.TransformUtil;
+import de.mhus.osgi.api.util.OsgiBundleClassLoader;
 
 public class TransformWebSpace extends AbstractWebSpace
         implements CanTransform, CallConfigProvider {
@@ -57,10 +63,14 @@ public class TransformWebSpace extends AbstractWebSpace
     protected MProperties environment = null;
     private boolean csrfEnabled;
     private int stamp = 0;
-    private SoftHashMap<File, MProperties> cfgCache = new SoftHashMap<>();
-    private MProperties cfgDefault = new MProperties();
+    private FileConfigIndex cfgIndex;
+    private TemplateCache templates;
     private String htmlHeader;
     private String htmlFooter;
+    private volatile BoundedCache<String, Route> routes;
+    private final AtomicLong routeGeneration = new AtomicLong();
+
+    private static final Route NOT_FOUND = new Route(null, null, null, false, false, false, null);
 
     @Override
     public void start(CherryApi api) throws MException {
@@ -130,6 +140,38 @@ public class TransformWebSpace extends AbstractWebSpace
                 }
             }
         }
+        cfgIndex =
+                new FileConfigIndex(
+                        templateRoot,
+                        cfgExtension,
+                        cDir == null ? 10000 : cDir.getInt("cfgCacheSize", 10000),
+                        getDocumentIndex());
+        cfgIndex.setWatched(isWatchingDocuments() && isDocument(templateRoot));
+        TemplateCompiler compiler = new TransformTemplateCompiler();
+        String compilerClazzName = cDir == null ? null : cDir.getString("templateCompiler", null);
+        if (compilerClazzName != null) {
+            try {
+                Class<?> clazz = new OsgiBundleClassLoader().loadClass(compilerClazzName);
+                compiler = (TemplateCompiler) clazz.getDeclaredConstructor().newInstance();
+            } catch (Throwable e) {
+                throw new MException(
+                        RC.INTERNAL_ERROR,
+                        "can't instanciate template compiler",
+                        compilerClazzName,
+                        e);
+            }
+        }
+        templates =
+                new TemplateCache(
+                        compiler,
+                        getDocumentRoot(),
+                        cDir == null ? 1000 : cDir.getInt("templateCacheSize", 1000),
+                        getDocumentIndex());
+        // only watched files can be cached
+        int routeCacheSize = cDir == null ? 10000 : cDir.getInt("routeCacheSize", 10000);
+        if (routeCacheSize > 0 && isWatchingDocuments() && isDocument(templateRoot))
+            routes = new BoundedCache<>(routeCacheSize);
+        else routes = null;
     }
 
     @Override
@@ -143,122 +185,191 @@ public class TransformWebSpace extends AbstractWebSpace
 
     @Override
     protected void doHeadRequest(CallContext context) throws Exception {
-        String path = context.getHttpPath();
-        path = MFile.normalizePath(path);
-        File file = new File(templateRoot, path);
-        String orgPath = path;
-        String lowerPath = path.toLowerCase();
-        if (file.exists()) {
-            if (file.isDirectory()) {
-                path = path + "/" + index;
-            } else if (hasTransformExtension(lowerPath)) {
-                // path = MString.beforeLastIndex(path, '.');
+        Route route = resolve(context.getHttpPath());
+        if (route.file == null) {
+            sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
+            return;
+        }
+        if (route.staticFile) {
+            String encoding = selectPrecompressed(context, route.file);
+            File content = getPrecompressedFile(route.file, encoding);
+            DocumentIndex.Entry entry = validateDocument(content);
+            if (entry == null) {
                 sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
                 return;
-            } else {
-                IReadProperties fileConfig = findConfig(file);
-                prepareHead(context, file, path, fileConfig);
-                return;
             }
+            String etag = createETag(entry);
+            if (isNotModified(context, route.path, etag, entry.getModified())) return;
+            prepareHead(context, route);
+            prepareStaticHead(context, entry, encoding, etag);
+            return;
         }
-        // deny ?
-        for (String extension : denyExtensions) {
-            if (lowerPath.endsWith(extension)) {
+        prepareHead(context, route);
+    }
+
+    @Override
+    protected void doGetRequest(CallContext context) throws Exception {
+        Route route = resolve(context.getHttpPath());
+        if (route.file == null) {
+            sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
+            return;
+        }
+        File file = route.file;
+        IReadProperties fileConfig = route.config;
+
+        if (route.template) {
+            prepareHead(context, route);
+            try {
+                doTransform(context, file, fileConfig, null);
+            } catch (Throwable t) {
+                sendError(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, t);
+            }
+            return;
+        }
+
+        String etag = null;
+        String encoding = null;
+        File content = file;
+        DocumentIndex.Entry entry = null;
+        if (route.staticFile) {
+            encoding = selectPrecompressed(context, file);
+            content = getPrecompressedFile(file, encoding);
+            entry = validateDocument(content);
+            if (entry == null) {
                 sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
                 return;
             }
+            // before the file is opened
+            etag = createETag(entry);
+            if (isNotModified(context, route.path, etag, entry.getModified())) return;
         }
-        // find template
-        for (String extension : removeExtensions) {
-            if (lowerPath.endsWith(extension)) {
-                path = path.substring(0, path.length() - extension.length());
-                break;
+        prepareHead(context, route);
+        if (etag != null) prepareStaticHead(context, entry, encoding, etag);
+        try {
+            if (etag != null
+                    && StaticContent.sendRanges(
+                            context, content, etag, entry.getModified(), entry.getSize()))
+                return;
+            OutputStream os = context.getOutputStream();
+
+            String htmlHeaderLocal = fileConfig.getString("htmlHeader", htmlHeader);
+            if (route.html && MString.isSet(htmlHeaderLocal)) {
+                doTransform(context, new File(htmlHeaderLocal), fileConfig, null);
             }
-        }
+            String htmlFooterLocal = fileConfig.getString("htmlFooter", htmlFooter);
+            boolean hasFooter = route.html && MString.isSet(htmlFooterLocal);
 
-        for (String extension : extensionOrder) {
-            String p = path + extension;
-            file = new File(templateRoot, p);
-            if (file.exists() && file.isFile()) {
-                IReadProperties fileConfig = findConfig(file);
-                prepareHead(context, file, orgPath, fileConfig);
+            if (route.transformType != null) {
+                doTransform(context, file, fileConfig, route.transformType);
+            } else {
+                if (entry == null) entry = validateDocument(content);
+                if (entry == null) throw new FileNotFoundException(content.getPath());
+                // if it's the last content it can be sent by the container
+                sendStaticFile(os, content, entry, !hasFooter);
+            }
+
+            if (hasFooter) {
+                doTransform(context, new File(htmlFooterLocal), fileConfig, null);
             }
+
+            os.flush();
+
+        } catch (Throwable t) {
+            log().w("get failed", file, t);
+            sendError(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
         }
+    }
 
-        sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
+    @Override
+    public IReadProperties findConfig(CallContext context) {
+        return resolve(context.getHttpPath()).config;
     }
 
     @Override
-    protected void doGetRequest(CallContext context) throws Exception {
-        String path = context.getHttpPath();
+    protected void onDocumentsChanged(Set<File> files) {
+        super.onDocumentsChanged(files);
+        // any change can create or remove a candidate or change a config
+        routeGeneration.incrementAndGet();
+        BoundedCache<String, Route> cache = routes;
+        if (cache != null) cache.clear();
+        cfgIndex.clear();
+        // templates can include the changed files
+        templates.clear();
+    }
+
+    @Override
+    protected void onDocumentsNotWatched() {
+        super.onDocumentsNotWatched();
+        routes = null;
+        routeGeneration.incrementAndGet();
+        FileConfigIndex index = cfgIndex;
+        if (index != null) {
+            index.setWatched(false);
+            index.clear();
+        }
+        TemplateCache cache = templates;
+        if (cache != null) cache.clear();
+    }
+
+    /**
+     * Resolve the request path to the file to deliver. The result is cached if the route cache is
+     * enabled, also if nothing is found.
+     *
+     * @param path The request path
+     * @return The route, file is null if not found
+     */
+    private Route resolve(String path) {
         path = MFile.normalizePath(path);
+        BoundedCache<String, Route> cache = routes;
+        if (cache == null) return doResolve(path);
+        Route route = cache.get(path);
+        if (route != null) return route;
+        long generation = routeGeneration.get();
+        route = doResolve(path);
+        // not cached if the files changed while resolving
+        if (generation == routeGeneration.get()) cache.put(path, route);
+        return route;
+    }
+
+    private Route doResolve(String path) {
+        DocumentIndex documents = getDocumentIndex();
         File file = new File(templateRoot, path);
 
-        if (file.exists() && file.isDirectory()) {
+        if (documents.isDirectory(file)) {
             path = path + "/" + index;
             file = new File(templateRoot, path);
         }
         String lowerPath = path.toLowerCase();
         // deny ?
         for (String extension : denyExtensions) {
-            if (lowerPath.endsWith(extension)) {
-                sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
-                return;
-            }
+            if (lowerPath.endsWith(extension)) return NOT_FOUND;
         }
 
-        if (file.exists()) {
-
-            IReadProperties fileConfig = findConfig(file);
-            if (file.isDirectory()) {
+        if (documents.exists(file)) {
+            if (documents.isDirectory(file)) {
                 log().d("deny directory", file);
-                sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
-                return;
+                return NOT_FOUND;
             }
             if (hasTransformExtension(lowerPath)) {
                 log().d("deny TransformExtension", path);
-                // path = MString.beforeLastIndex(path, '.');
-                sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
-                return;
-            } else {
-                prepareHead(context, file, path, fileConfig);
-                try {
-                    boolean isHtml = hasHtmlExtension(path);
-                    OutputStream os = context.getOutputStream();
-
-                    String htmlHeaderLocal = fileConfig.getString("htmlHeader", htmlHeader);
-                    if (isHtml && MString.isSet(htmlHeaderLocal)) {
-                        doTransform(context, new File(htmlHeaderLocal), fileConfig, null);
-                    }
-
-                    String transformType = fileConfig.getString("transform", null);
-                    if (MString.isSet(transformType)) {
-                        doTransform(context, file, fileConfig, transformType);
-                    } else {
-                        FileInputStream is = new FileInputStream(file);
-                        MFile.copyFile(is, os);
-                        is.close();
-                    }
-
-                    String htmlFooterLocal = fileConfig.getString("htmlFooter", htmlFooter);
-                    if (isHtml && MString.isSet(htmlFooterLocal)) {
-                        doTransform(context, new File(htmlFooterLocal), fileConfig, null);
-                    }
-
-                    os.flush();
-
-                } catch (Throwable t) {
-                    log().w("get failed", file, t);
-                    sendError(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
-                }
-                return;
+                return NOT_FOUND;
             }
+            IReadProperties fileConfig = findConfig(file);
+            String transformType = fileConfig.getString("transform", null);
+            return new Route(
+                    file,
+                    path,
+                    fileConfig,
+                    false,
+                    isStatic(path, fileConfig),
+                    hasHtmlExtension(path),
+                    MString.isSet(transformType) ? transformType : null);
         }
 
         String orgPath = path;
         // find template
         for (String extension : removeExtensions) {
-            if (path.endsWith(extension)) {
+            if (lowerPath.endsWith(extension)) {
                 path = path.substring(0, path.length() - extension.length());
                 break;
             }
@@ -267,74 +378,43 @@ public class TransformWebSpace extends AbstractWebSpace
         for (String extension : extensionOrder) {
             String p = path + extension;
             file = new File(templateRoot, p);
-            if (file.exists() && file.isFile()) {
-                IReadProperties fileConfig = findConfig(file);
-                prepareHead(context, file, orgPath, fileConfig);
-                try {
-                    doTransform(context, file, fileConfig, null);
-                } catch (Throwable t) {
-                    sendError(context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, t);
-                }
-                return;
+            if (documents.isFile(file)) {
+                return new Route(file, orgPath, findConfig(file), true, false, false, null);
             }
         }
-        log().d("file not found", path, file);
-        sendError(context, HttpServletResponse.SC_NOT_FOUND, null);
+        log().d("file not found", path);
+        return NOT_FOUND;
     }
 
-    @Override
-    public IReadProperties findConfig(CallContext context) {
-        String path = context.getHttpPath();
-        path = MFile.normalizePath(path);
-        File file = new File(templateRoot, path);
-        String lowerPath = path.toLowerCase();
-        // deny ?
-        for (String extension : denyExtensions) {
-            if (lowerPath.endsWith(extension)) {
-                return null;
-            }
-        }
-        if (file.exists() && file.isDirectory()) {
-            path = path + "/" + index;
-            file = new File(templateRoot, path);
-        }
-        if (file.exists()) {
-            if (hasTransformExtension(lowerPath)) return null;
-            return findConfig(file);
-        }
-        for (String extension : removeExtensions) {
-            if (path.endsWith(extension)) {
-                path = path.substring(0, path.length() - extension.length());
-                break;
-            }
-        }
-        for (String extension : extensionOrder) {
-            String p = path + extension;
-            file = new File(templateRoot, p);
-            if (file.exists() && file.isFile()) {
-                return findConfig(file);
-            }
-        }
-
-        return null;
+    private IReadProperties findConfig(File file) {
+        return cfgIndex.get(file);
     }
 
-    private IReadProperties findConfig(File file) {
-        File cfgFile = new File(file + cfgExtension);
-        if (cfgFile.exists()) {
-            MProperties out = cfgCache.get(cfgFile);
-            if (out == null
-                    || out.getLong("_cfg_modified", 0) != cfgFile.lastModified()
-                    || out.getLong("_cfg_size", 0) != cfgFile.length()) {
-                log().d("Load file config", cfgFile);
-                out = MProperties.load(cfgFile);
-                out.setLong("_modified", cfgFile.lastModified());
-                out.setLong("_size", cfgFile.length());
-                cfgCache.put(cfgFile, out);
-            }
-            return out;
+    private void prepareStaticHead(
+            CallContext context, DocumentIndex.Entry content, String encoding, String etag) {
+        HttpServletResponse resp = context.getHttpResponse();
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setHeader("Last-Modified", MDate.toHttpHeaderDate(content.getModified()));
+        if (encoding != null) {
+            resp.setHeader("Content-Encoding", encoding);
+            resp.setContentLengthLong(content.getSize());
         }
-        return cfgDefault;
+    }
+
+    /**
+     * Return true if the file is delivered as it is. Transformed content and html with header or
+     * footer depend on the request and can't be validated by the file.
+     *
+     * @param path The path
+     * @param fileConfig Config of the file
+     * @return true for plain files
+     */
+    protected boolean isStatic(String path, IReadProperties fileConfig) {
+        if (MString.isSet(fileConfig.getString("transform", null))) return false;
+        if (!hasHtmlExtension(path)) return true;
+        return MString.isEmpty(fileConfig.getString("htmlHeader", htmlHeader))
+                && MString.isEmpty(fileConfig.getString("htmlFooter", htmlFooter));
     }
 
     public boolean hasTransformExtension(String path) {
@@ -372,7 +452,7 @@ public class TransformWebSpace extends AbstractWebSpace
         doFillParamsForTransform(context, from, type, param);
 
         OutputStream os = context.getOutputStream();
-        TransformUtil.transform(from, os, getDocumentRoot(), null, null, param, type);
+        templates.get(from, type).render(os, param);
         os.flush();
     }
 
@@ -391,21 +471,37 @@ public class TransformWebSpace extends AbstractWebSpace
             CallContext context, File from, String path, IReadProperties fileConfig) {
         HttpServletResponse resp = context.getHttpResponse();
         resp.setCharacterEncoding(charsetEncoding);
-        resp.setHeader("Last-Modified", MDate.toHttpHeaderDate(from.lastModified()));
+        resp.setHeader(
+                "Last-Modified", MDate.toHttpHeaderDate(getDocumentIndex().lastModified(from)));
         super.prepareHead(context, MFile.getFileExtension(from), path);
-        if (fileConfig != null) {
-            int cnt = 0;
-            while (true) {
-                String key = "httpHeader" + cnt;
-                String value = fileConfig.getString(key, null);
-                if (value == null) break;
-                int pos = value.indexOf(':');
-                if (pos > 0) {
-                    resp.setHeader(value.substring(0, pos).trim(), value.substring(pos + 1).trim());
-                }
-                cnt++;
+        if (fileConfig != null) setFileHeaders(resp, parseFileHeaders(fileConfig));
+    }
+
+    private void prepareHead(CallContext context, Route route) {
+        prepareHead(context, route.file, route.path, null);
+        setFileHeaders(context.getHttpResponse(), route.headers);
+    }
+
+    private static void setFileHeaders(HttpServletResponse resp, String[] headers) {
+        for (int i = 0; i < headers.length; i += 2) resp.setHeader(headers[i], headers[i + 1]);
+    }
+
+    /** Return name and value of the headers 'httpHeader0', 'httpHeader1', ... of the config. */
+    private static String[] parseFileHeaders(IReadProperties fileConfig) {
+        ArrayList<String> out = new ArrayList<>();
+        int cnt = 0;
+        while (true) {
+            String key = "httpHeader" + cnt;
+            String value = fileConfig.getString(key, null);
+            if (value == null) break;
+            int pos = value.indexOf(':');
+            if (pos > 0) {
+                out.add(value.substring(0, pos).trim());
+                out.add(value.substring(pos + 1).trim());
             }
+            cnt++;
         }
+        return out.toArray(new String[out.size()]);
     }
 
     public File findTemplateFile(String path) {
@@ -457,8 +553,7 @@ public class TransformWebSpace extends AbstractWebSpace
                 param.put("errorMsg", MHttp.HTTP_STATUS_CODES.getOrDefault(sc, ""));
 
                 ServletOutputStream os = context.getHttpResponse().getOutputStream();
-                TransformUtil.transform(
-                        errorTemplate, os, getDocumentRoot(), null, null, param, null);
+                templates.get(errorTemplate, null).render(os, param);
                 context.getHttpResponse().setContentType("text/html");
                 context.getHttpResponse().setCharacterEncoding(charsetEncoding);
                 os.flush();
@@ -489,4 +584,34 @@ public class TransformWebSpace extends AbstractWebSpace
         IReadProperties cfg = findConfig(from);
         doTransform(context, from, cfg, null);
     }
+
+    /** Resolved request path, file is null if nothing is found. */
+    private static class Route {
+        private final File file;
+        private final String path;
+        private final IReadProperties config;
+        private final boolean template;
+        private final boolean staticFile;
+        private final boolean html;
+        private final String transformType;
+        private final String[] headers;
+
+        private Route(
+                File file,
+                String path,
+                IReadProperties config,
+                boolean template,
+                boolean staticFile,
+                boolean html,
+                String transformType) {
+            this.file = file;
+            this.path = path;
+            this.config = config;
+            this.template = template;
+            this.staticFile = staticFile;
+            this.html = html;
+            this.transformType = transformType;
+            this.headers = config == null ? new String[0] : parseFileHeaders(config);
+        }
+    }
 }
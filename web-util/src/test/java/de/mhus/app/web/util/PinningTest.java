@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2015 Mike Hummel (mh@mhus.de)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.app.web.util;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import de.mhus.app.web.api.CallContext;
+import de.mhus.app.web.api.WebArea;
+import de.mhus.app.web.api.WebFilter;
+import de.mhus.app.web.api.WebSession;
+import de.mhus.app.web.util.area.AreaToService;
+import de.mhus.app.web.util.filter.FilterToService;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Checks that the lazy service lookups and the session access of the utilities do not pin the
+ * carrier of a virtual thread. See PinningTest of web-core, the test is skipped on runtimes without
+ * virtual threads or where monitors don't pin.
+ */
+public class PinningTest {
+
+    @Test
+    public void testFilterToService() throws Exception {
+        WebFilter delegate =
+                mock(
+                        WebFilter.class,
+                        method -> {
+                            if (method.getName().equals("doInitialize")) block();
+                            return method.getReturnType() == boolean.class ? true : null;
+                        });
+        FilterToService filter =
+                new FilterToService() {
+                    @Override
+                    protected WebFilter findService() {
+                        return delegate;
+                    }
+                };
+        assertNotPinned(() -> assertTrue(filter.doFilterBegin(null, null)));
+    }
+
+    @Test
+    public void testAreaToService() throws Exception {
+        WebArea delegate =
+                mock(
+                        WebArea.class,
+                        method -> {
+                            if (method.getName().equals("doInitialize")) block();
+                            return method.getReturnType() == boolean.class ? true : null;
+                        });
+        AreaToService area =
+                new AreaToService() {
+                    @Override
+                    protected WebArea findService() {
+                        return delegate;
+                    }
+                };
+        assertNotPinned(() -> assertTrue(area.doRequest(null, null)));
+    }
+
+    @Test
+    public void testCsrfToken() throws Exception {
+        ConcurrentLinkedDeque<String> tokens = new ConcurrentLinkedDeque<>();
+        WebSession session =
+                mock(
+                        WebSession.class,
+                        method -> {
+                            block();
+                            return method.getName().equals("get") ? tokens : null;
+                        });
+        CallContext context =
+                mock(
+                        CallContext.class,
+                        method -> method.getName().equals("getSession") ? session : null);
+        assertNotPinned(() -> CherryWebUtil.createCsrfToken(context));
+        assertTrue(tokens.size() == 1);
+    }
+
+    private void assertNotPinned(Task task) throws Exception {
+        ExecutorService executor = createVirtualExecutor();
+        assumeTrue(executor != null, "virtual threads are not supported");
+        try {
+            Object monitor = new Object();
+            List<RecordedEvent> probe =
+                    record(
+                            executor,
+                            () -> {
+                                synchronized (monitor) {
+                                    block();
+                                }
+                            });
+            assumeTrue(!probe.isEmpty(), "monitors don't pin on this runtime");
+            List<RecordedEvent> events = record(executor, task);
+            assertTrue(events.isEmpty(), "carrier pinned: " + events);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private List<RecordedEvent> record(ExecutorService executor, Task task) throws Exception {
+        Path file = Files.createTempFile("pinning", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            recording.start();
+            executor.submit(
+                            () -> {
+                                task.run();
+                                return null;
+                            })
+                    .get();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            // available since java 21
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static void block() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T mock(Class<T> type, Function<Method, Object> answer) {
+        return (T)
+                Proxy.newProxyInstance(
+                        type.getClassLoader(),
+                        new Class<?>[] {type},
+                        (proxy, method, args) -> answer.apply(method));
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}